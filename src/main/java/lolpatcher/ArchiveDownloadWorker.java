@@ -1,14 +1,18 @@
 package lolpatcher;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.InflaterInputStream;
 import static lolpatcher.PatchTask.speedStat;
 import lolpatcher.manifest.ManifestFile;
+import nl.xupwup.Util.BufferPool;
+import nl.xupwup.Util.ConnectionPool;
 import nl.xupwup.Util.MiniHttpClient;
 
 /**
@@ -18,6 +22,7 @@ import nl.xupwup.Util.MiniHttpClient;
 public class ArchiveDownloadWorker extends Worker{
     
     LoLPatcher patcher;
+    private int finished, total;
 
     public ArchiveDownloadWorker(LoLPatcher patcher) {
         this.patcher = patcher;
@@ -26,51 +31,20 @@ public class ArchiveDownloadWorker extends Worker{
     @Override
     public void run() {
         try {
-            try (MiniHttpClient htc = new MiniHttpClient("l3cdn.riotgames.com")) {
-                htc.throwExceptionWhenNot200 = true;
-                htc.setErrorHandler(defaultHttpErrorHandler);
-                
-                while(true){
-                    LoLPatcher.Archive task;
-                    synchronized(patcher.archivesToPatch){
-                        if(patcher.archivesToPatch.isEmpty() || patcher.done || patcher.error != null){
-                            break;
-                        }
-                        task = patcher.archivesToPatch.remove(0);
-                    }
-                    startTime = System.currentTimeMillis();
-                    progress = 0;
-                    RAFArchive archive = patcher.getArchive(task.versionName); // this file is not closed here, the lolpatcher has to do that
-                    for(int i = 0; i < task.files.size(); i++){
-                        if(patcher.done || patcher.error != null){
-                            break;
-                        }
-                        ManifestFile file = task.files.get(i);
-                        current = file.name;
-                        RAFArchive.RafFile raff = archive.dictionary.get(file.path + file.name);
-                        
-                        if(raff != null){
-                            alternative = true;
-                            InputStream in = archive.readFile(raff);
-                            if(file.fileType == 22){
-                                in = new InflaterInputStream(in);
-                            }
-                            if(checkHash(new BufferedInputStream(in), patcher, file, false)){
-                                progress = (float) i / task.files.size();
-                                continue;
-                            }else{
-                                System.out.println("bad file: " + file);
-                                archive.fileList.remove(raff);
-                                archive.dictionary.remove(file.path + file.name);
-                            }
-                        }
-                        alternative = false;
-                        downloadFileToArchive(file, htc, archive);
-                        progress = (float) i / task.files.size();
+            while(true){
+                LoLPatcher.Archive task;
+                synchronized(patcher.archivesToPatch){
+                    if(patcher.archivesToPatch.isEmpty() || patcher.done || patcher.error != null){
+                        break;
                     }
-                    progress = 1;
-                    startTime = -1;
+                    task = patcher.archivesToPatch.remove(0);
                 }
+                startTime = System.currentTimeMillis();
+                progress = 0;
+                RAFArchive archive = patcher.getArchive(task.versionName); // this file is not closed here, the lolpatcher has to do that
+                patchArchive(task, archive);
+                progress = 1;
+                startTime = -1;
             }
         } catch (IOException ex) {
             Logger.getLogger(ArchiveDownloadWorker.class.getName()).log(Level.SEVERE, null, ex);
@@ -80,28 +54,205 @@ public class ArchiveDownloadWorker extends Worker{
         }
     }
     
-    private void downloadFileToArchive(ManifestFile f, MiniHttpClient hc, RAFArchive archive) throws IOException{
-        String url = "/releases/"+patcher.branch+"/"+patcher.type+"/"
-            + patcher.project + "/releases/" + f.release + "/files/" + 
-            f.path.replaceAll(" ", "%20") + f.name.replaceAll(" ", "%20") + (f.fileType > 0 ? ".compressed" : "");
-        
-        MiniHttpClient.HttpResult hte = hc.get(url);
+    /**
+     * Entries that are already in the archive are checked on the HashPool
+     * while the missing ones download. Entries that turn out to be bad are
+     * downloaded in a second round.
+     */
+    private void patchArchive(LoLPatcher.Archive task, RAFArchive archive) throws IOException{
+        ArrayList<ManifestFile> missing = new ArrayList<>();
+        ArrayList<ManifestFile> checking = new ArrayList<>();
+        ArrayList<Future<Boolean>> checks = new ArrayList<>();
+        ArrayList<RAFArchive.RafFile> existing = new ArrayList<>();
+        total = task.files.size();
+        finished = 0;
+        try{
+            for(ManifestFile file : task.files){
+                RAFArchive.RafFile raff = archive.getFile(file.getPath() + file.getName());
+                if(raff == null){
+                    missing.add(file);
+                }else if(patcher.isVerified(file, raff.startindex, raff.size)){
+                    finished++; // it was checked before, and was not moved since
+                }else{
+                    checking.add(file);
+                    existing.add(raff);
+                }
+            }
+            checks.addAll(HashPool.verifyExisting(patcher, archive, existing, checking));
+            progress = (float) finished / total;
+            for(int attempt = 0; !patcher.done && patcher.error == null; attempt++){
+                download(missing, archive, checking, checks);
+                missing.clear();
+                for(int i = 0; i < checks.size(); i++){
+                    ManifestFile file = checking.get(i);
+                    current = file.getName();
+                    alternative = true;
+                    if(await(checks.get(i))){
+                        finished++;
+                        progress = (float) finished / total;
+                    }else{
+                        System.out.println("bad file: " + file);
+                        archive.removeFile(file.getPath() + file.getName());
+                        missing.add(file);
+                    }
+                }
+                alternative = false;
+                checking.clear();
+                checks.clear();
+                if(missing.isEmpty()){
+                    break;
+                }
+                if(attempt > 0){
+                    ManifestFile f = missing.get(0);
+                    throw new IOException("Checksum mismatch for downloaded file " + f.getPath() + f.getName());
+                }
+            }
+        }finally{
+            for(Future<Boolean> check : checks){
+                check.cancel(false); // only when something went wrong
+            }
+        }
+    }
+    
+    private boolean await(Future<Boolean> check) throws IOException{
+        try {
+            return check.get();
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while checking files", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+    
+    /**
+     * Downloads files into the archive, a few at a time on one connection.
+     * Entries that still have to be checked are added to checking and checks.
+     */
+    private void download(ArrayList<ManifestFile> files, RAFArchive archive,
+            ArrayList<ManifestFile> checking, ArrayList<Future<Boolean>> checks) throws IOException{
+        ArrayList<ManifestFile> requested = new ArrayList<>(PIPELINE_DEPTH);
+        ArrayList<ManifestFile> resumed = new ArrayList<>();
+        int i = 0;
+        while(i < files.size() && !patcher.done && patcher.error == null){
+            // request the next few files in one go
+            requested.clear();
+            resumed.clear();
+            try(ConnectionPool.Connection con = connect()){
+                for(; i < files.size() && requested.size() < PIPELINE_DEPTH; i++){
+                    ManifestFile file = files.get(i);
+                    if(getResumeEntry(file) != null){
+                        resumed.add(file); // needs a range request, which can not be pipelined
+                    }else{
+                        con.client.enqueue(getUrl(file));
+                        requested.add(file);
+                    }
+                }
+                requested.addAll(resumed);
+                for(ManifestFile file : requested){
+                    if(patcher.done || patcher.error != null){
+                        break;
+                    }
+                    current = file.getName();
+                    DownloadLedger.Entry e = resumed.contains(file) ? getResumeEntry(file) : null;
+                    RAFArchive.RafFile raff;
+                    if(e != null){
+                        raff = downloadFileToArchive(file, con.client.get(getUrl(file), e.committed, -1), archive, e);
+                    }else{
+                        raff = downloadFileToArchive(file, con.client.next(), archive, null);
+                    }
+                    if(raff != null){
+                        checking.add(file);
+                        checks.add(HashPool.verify(patcher, archive, raff, file));
+                    }else{
+                        finished++;
+                        progress = (float) finished / total;
+                    }
+                }
+            }
+        }
+    }
+    
+    private String getUrl(ManifestFile f){
+        return "/releases/"+patcher.branch+"/"+patcher.type+"/"
+            + patcher.project + "/releases/" + f.getRelease() + "/files/" + 
+            f.getPath().replaceAll(" ", "%20") + f.getName().replaceAll(" ", "%20") + (f.getFileType() > 0 ? ".compressed" : "");
+    }
+    
+    /**
+     * @return how far an earlier run got with f, or null. Only files that are
+     * stored compressed can be resumed, the others are inflated on the way in.
+     */
+    private DownloadLedger.Entry getResumeEntry(ManifestFile f){
+        if(f.getFileType() != 22){
+            return null;
+        }
+        return patcher.ledger.get(DownloadLedger.archiveKey(f.getRelease(), f.getPath() + f.getName()), f);
+    }
+    
+    /**
+     * @param resume  where an earlier run left off, the response body starts there. Or null.
+     * @return the entry if it still has to be checked, or null if it was
+     * checked while it was written or the download was cancelled
+     */
+    private RAFArchive.RafFile downloadFileToArchive(ManifestFile f, MiniHttpClient.HttpResult hte, RAFArchive archive, DownloadLedger.Entry resume) throws IOException{
         InputStream fileStream = hte.in;
         
-
-        try(InputStream in = (f.fileType == 6 ? new InflaterInputStream(fileStream) : fileStream)){
-            try(OutputStream os = archive.writeFile(f.path + f.name, f)){
-                byte[] buffer = new byte[1024];
+        String key = DownloadLedger.archiveKey(f.getRelease(), f.getPath() + f.getName());
+        if(f.getFileType() == 6){
+            RAFArchive.RafFileOutputStream entry = archive.writeFile(f.getPath() + f.getName(), f, -1, 0);
+            VerifyingOutputStream verifier = new VerifyingOutputStream(new BufferedOutputStream(entry), f, false);
+            try(InputStream in = new InflaterInputStream(fileStream)){
+                byte[] buffer = BufferPool.IO.take();
+                try{
+                    int r;
+                    while((r = in.read(buffer)) != -1){
+                        speedStat(r);
+                        if(patcher.done){
+                            return null; // not closed, so the entry is dropped
+                        }
+                        verifier.write(buffer, 0, r);
+                    }
+                }finally{
+                    BufferPool.IO.give(buffer);
+                }
+            }
+            verifier.close();
+            if(!verifier.isVerified()){
+                archive.removeFile(f.getPath() + f.getName());
+                throw new IOException("Checksum mismatch for downloaded file " + f.getPath() + f.getName());
+            }
+            patcher.setVerified(f, entry.getStart(), entry.getCount());
+            return null;
+        }
+        
+        try(InputStream in = fileStream){
+            RAFArchive.RafFileOutputStream os = resume == null ? 
+                    archive.writeFile(f.getPath() + f.getName(), f, -1, 0) :
+                    archive.writeFile(f.getPath() + f.getName(), f, resume.offset, resume.committed);
+            byte[] buffer = BufferPool.IO.take();
+            try{
                 int r;
+                long checkpoint = os.getCount() + CHECKPOINT_BYTES;
                 while((r = in.read(buffer)) != -1){
                     speedStat(r);
+                    os.write(buffer, 0, r);
+                    if(os.getCount() >= checkpoint || patcher.done){
+                        os.force();
+                        patcher.ledger.commit(key, f, os.getStart(), os.getCount(), f.getSizeCompressed());
+                        patcher.ledger.save(patcher.done);
+                        checkpoint = os.getCount() + CHECKPOINT_BYTES;
+                    }
                     if(patcher.done){
-                        System.out.println("exited archive purge task");
-                        return;
+                        return null; // not closed, so the entry is dropped, but the data stays for the next run
                     }
-                    os.write(buffer, 0, r);
                 }
+            }finally{
+                BufferPool.IO.give(buffer);
             }
+            os.close();
+            patcher.ledger.remove(key);
+            // checked on the HashPool, it is still in the page cache
+            return archive.getFile(f.getPath() + f.getName());
         }
     }
 
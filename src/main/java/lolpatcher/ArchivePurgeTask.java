@@ -2,15 +2,25 @@ package lolpatcher;
 
 import lolpatcher.manifest.ReleaseManifest;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import lolpatcher.manifest.ManifestFile;
 
 /**
@@ -19,8 +29,36 @@ import lolpatcher.manifest.ManifestFile;
  */
 public class ArchivePurgeTask extends PatchTask {
 
-    float globalPercentage, archivePercentage;
+    /**
+     * How many archives are purged at once.
+     */
+    static final int PURGE_THREADS = 4;
+    /**
+     * An archive is compacted in place when at least this part of its .raf.dat
+     * is kept, and rewritten otherwise.
+     */
+    static final float COMPACT_IN_PLACE = 0.5f;
+    
+    /**
+     * Archives that would free less than this many bytes are left alone.
+     */
+    public long minReclaim = 1 << 20;
+    /**
+     * If set, no archive is started after this many milliseconds. Together
+     * with ioBudget this lets purge run in small slices.
+     */
+    public long timeBudget = 0;
+    /**
+     * If set, archives are only purged while the bytes they copy stay below this.
+     */
+    public long ioBudget = 0;
+    
+    volatile float globalPercentage;
     int nArchives = 0;
+    private final AtomicInteger purged = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicLong ioSpent = new AtomicLong();
+    private long started;
     
     String project, targetVersion, branch, type;
 
@@ -45,35 +83,118 @@ public class ArchivePurgeTask extends PatchTask {
         Collections.sort(files, new Comparator<ManifestFile>() {
             @Override
             public int compare(ManifestFile o1, ManifestFile o2) {
-                return Integer.compare(o1.releaseInt , o2.releaseInt);
+                return Integer.compare(o1.getReleaseInt() , o2.getReleaseInt());
             }
         });
         
         LoLPatcher.Archive lastArchive = null;
         for(ManifestFile f : files){
-            if(f.fileType == 22 || f.fileType == 6){
-                if(lastArchive == null || !lastArchive.versionName.equals(f.release)){
-                    lastArchive = new LoLPatcher.Archive(f.release, new ArrayList<ManifestFile>());
+            if(f.getFileType() == 22 || f.getFileType() == 6){
+                if(lastArchive == null || !lastArchive.versionName.equals(f.getRelease())){
+                    lastArchive = new LoLPatcher.Archive(f.getRelease(), new ArrayList<ManifestFile>());
                     archivesToPurge.add(lastArchive);
                 }
                 lastArchive.files.add(f);
             }
         }
-        nArchives = archivesToPurge.size();
-        for(int i = 0; i < archivesToPurge.size(); i++){
-            globalPercentage = ((float) i / nArchives);
-            purgeArchive(archivesToPurge.get(i));
+        currentFile = "Planning";
+        ArrayList<Plan> plans = new ArrayList<>();
+        for(LoLPatcher.Archive ar : archivesToPurge){
             if(done) return;
+            Plan plan = plan(ar);
+            Logger.getLogger(ArchivePurgeTask.class.getName()).log(Level.FINE, "{0}: {1}", new Object[]{ar.versionName, plan.report});
+            if(plan.report.getDeadBytes() > 0 && plan.report.getDeadBytes() >= minReclaim){
+                plans.add(plan);
+            }
+        }
+        // the archives that free the most go first, in case the budget runs out
+        Collections.sort(plans, new Comparator<Plan>() {
+            @Override
+            public int compare(Plan o1, Plan o2) {
+                return Long.compare(o2.report.getDeadBytes(), o1.report.getDeadBytes());
+            }
+        });
+        
+        nArchives = plans.size();
+        started = System.currentTimeMillis();
+        // archives are independent, so several are purged at once
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(PURGE_THREADS, nArchives)));
+        ArrayList<Future<?>> purges = new ArrayList<>(nArchives);
+        try{
+            for(final Plan plan : plans){
+                purges.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if(!done){
+                            if(withinBudget(plan)){
+                                purgeArchive(plan);
+                            }else{
+                                skipped.incrementAndGet();
+                            }
+                        }
+                        globalPercentage = (float) purged.incrementAndGet() / nArchives;
+                        return null;
+                    }
+                }));
+            }
+            for(Future<?> purge : purges){
+                try {
+                    purge.get();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted while purging archives", ex);
+                } catch (ExecutionException ex) {
+                    if(ex.getCause() instanceof IOException){
+                        throw (IOException) ex.getCause();
+                    }
+                    throw new IOException(ex.getCause());
+                }
+            }
+        }finally{
+            for(Future<?> purge : purges){
+                purge.cancel(false); // only the ones that did not start yet, after an error
+            }
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(done) return;
+        if(skipped.get() > 0){
+            Logger.getLogger(ArchivePurgeTask.class.getName()).log(Level.INFO, "Purge budget used up, {0} archives are left for the next run", skipped.get());
         }
         done = true;
         globalPercentage = 1;
-        archivePercentage = 0;
     }
     
-    private void purgeArchive(LoLPatcher.Archive ar) throws IOException{
-        String folderName = "RADS/"+type + "/" + project + "/filearchives/"
-            + ar.versionName + "/";
-        File folder = new java.io.File(folderName);
+    /**
+     * Reserves the cost of purging an archive from the budget.
+     * @return false if the budget does not allow it
+     */
+    private boolean withinBudget(Plan plan){
+        if(timeBudget > 0 && System.currentTimeMillis() - started > timeBudget){
+            return false;
+        }
+        if(ioBudget > 0){
+            long spent;
+            do{
+                spent = ioSpent.get();
+                if(spent + plan.getCost() > ioBudget){
+                    return false; // a smaller archive may still fit
+                }
+            }while(!ioSpent.compareAndSet(spent, spent + plan.getCost()));
+        }
+        return true;
+    }
+    
+    /**
+     * Checks the installation of an archive and measures how fragmented it is.
+     * Only the index is read.
+     */
+    private Plan plan(LoLPatcher.Archive ar) throws IOException{
+        File folder = new File("RADS/"+type + "/" + project + "/filearchives/"
+            + ar.versionName + "/");
         if(!folder.exists()){
             throw new IOException("Invalid installation. Run quick repair first.");
         }
@@ -87,11 +208,30 @@ public class ArchivePurgeTask extends PatchTask {
             throw new IOException("Invalid installation. Expected one archive, "
                     + "found " + archives.length  + " in " +folder.getCanonicalPath()+".");
         }
-        if(!new File(folder, archives[0]+".dat").exists()){
+        File raf = new File(folder, archives[0]);
+        File dat = new File(folder, archives[0]+".dat");
+        if(!dat.exists()){
             throw new IOException("Invalid installation. Missing .raf.dat file in " +folder.getCanonicalPath()+".");
         }
-        File sourceRaf = new File(folder, archives[0]);
-        File sourceRafDat = new File(folder, archives[0]+".dat");
+        currentFile = ar.versionName;
+        HashSet<String> keep = new HashSet<>();
+        try (RAFArchive source = new RAFArchive(raf, dat)) {
+            for(ManifestFile f : ar.files){
+                if(!source.contains(f.getPath(), f.getName())){
+                    throw new FileNotFoundException("\"" + f.getPath() + f.getName() + "\" was not found in archive " + raf.getPath());
+                }
+                keep.add(f.getPath() + f.getName());
+            }
+            return new Plan(ar, folder, raf, dat, keep, source.getFragmentation(keep));
+        }
+    }
+    
+    private void purgeArchive(Plan plan) throws IOException{
+        LoLPatcher.Archive ar = plan.archive;
+        File folder = plan.folder;
+        String folderName = folder.getPath() + "/";
+        File sourceRaf = plan.raf;
+        File sourceRafDat = plan.dat;
         
         int nFilesInTarget = 0;
         
@@ -101,41 +241,26 @@ public class ArchivePurgeTask extends PatchTask {
                 LoLPatcher.deleteDir(tempDir);
             }
             currentFile = ar.versionName;
-            long sum = 0;
-            for(RAFArchive.RafFile fi : source.fileList){
-                sum += fi.size;
-            }
-            if(source.datRaf.length() == sum && source.fileList.size() == ar.files.size()){
-                return; // only purge if file has gaps or contains unneeded files
+            DownloadLedger.discard(type, project); // the offsets of unfinished downloads are about to change
+            
+            if(plan.isInPlace()){
+                // moving the live data down is cheaper than writing all of it again
+                currentFile = "Compacting " + ar.versionName;
+                if(source.compact(plan.keep, this) != -1){
+                    return;
+                }
             }
+            
             tempDir.mkdir();
             currentFile = "Loading " + ar.versionName;
             try (RAFArchive target = new RAFArchive(folderName + "/temp/Archive_1.raf")) {
-                for(int i = 0; i < ar.files.size(); i++){
-                    ManifestFile f = ar.files.get(i);
-                    archivePercentage = (float) i / ar.files.size();
-                    currentFile = f.name;
-                    nFilesInTarget++;
-                    
-                    try (InputStream in = source.readFile(f.path + f.name)) {
-                        try(OutputStream os = target.writeFile(f.path + f.name, f)){
-                            byte[] buffer = new byte[1024];
-                            int r;
-                            while((r = in.read(buffer)) != -1){
-                                speedStat(r);
-                                if(done){
-                                    System.out.println("exited archive purge task");
-                                    return;
-                                }
-                                os.write(buffer, 0, r);
-                            }
-                        }
-                    }
-                    int olen = source.dictionary.get(f.path + f.name).size;
-                    int nlen = target.dictionary.get(f.path + f.name).size;
-                    if(nlen != olen){
-                        throw new IOException("Size mismatch:" + nlen + " " + olen);
+                for(ManifestFile f : ar.files){
+                    if(done){
+                        System.out.println("exited archive purge task");
+                        return;
                     }
+                    nFilesInTarget++;
+                    target.transferFile(source, source.getFile(f.getPath() + f.getName()));
                 }
             }
         }
@@ -144,10 +269,10 @@ public class ArchivePurgeTask extends PatchTask {
             LoLPatcher.deleteDir(folder);
         }else{
             if(!sourceRaf.delete()){
-                throw new IOException("Delete failed for " + folderName + archives[0]);
+                throw new IOException("Delete failed for " + sourceRaf.getPath());
             }
             if(!sourceRafDat.delete()){
-                throw new IOException("Delete failed for " + folderName + archives[0]+".dat");
+                throw new IOException("Delete failed for " + sourceRafDat.getPath());
             }
             if(!new File(folderName + "/temp/Archive_1.raf").renameTo(new File(folder,"Archive_1.raf"))){
                 throw new IOException("Move failed for " + folderName + "temp/Archive_1.raf");
@@ -159,9 +284,42 @@ public class ArchivePurgeTask extends PatchTask {
             new File(folderName + "/temp/").delete();
         }
     }
+    
+    /**
+     * What purging one archive would free, and what it would cost.
+     */
+    private static class Plan{
+        final LoLPatcher.Archive archive;
+        final File folder, raf, dat;
+        final HashSet<String> keep;
+        final RAFArchive.Fragmentation report;
+
+        Plan(LoLPatcher.Archive archive, File folder, File raf, File dat, HashSet<String> keep, RAFArchive.Fragmentation report) {
+            this.archive = archive;
+            this.folder = folder;
+            this.raf = raf;
+            this.dat = dat;
+            this.keep = keep;
+            this.report = report;
+        }
+        
+        /**
+         * @return whether to compact in place rather than rewrite
+         */
+        boolean isInPlace(){
+            return report.liveBytes >= COMPACT_IN_PLACE * report.length;
+        }
+        
+        /**
+         * @return the bytes that have to be copied
+         */
+        long getCost(){
+            return isInPlace() ? report.movedBytes : report.liveBytes;
+        }
+    }
 
     @Override
     public float getPercentage() {
-        return 100 * (globalPercentage + archivePercentage / nArchives);
+        return 100 * globalPercentage;
     }
 }
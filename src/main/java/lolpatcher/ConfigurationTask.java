@@ -13,6 +13,7 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Properties;
@@ -35,6 +36,11 @@ public class ConfigurationTask extends PatchTask{
     float percentage = 0;
     String language;
     
+    /**
+     * How many of the patch tasks run at once.
+     */
+    static final int PATCH_THREADS = 4;
+    
     public ConfigurationTask(Main main){
         this.main = main;
     }
@@ -167,7 +173,7 @@ public class ConfigurationTask extends PatchTask{
         File confdir = new java.io.File("RADS/solutions/lol_game_client_sln/releases/" + slnversion + "/deploy/DATA/cfg/defaults/");
         confdir.mkdirs();
         File conf = new File(confdir, "locale.cfg");
-        
+        Files.deleteIfExists(conf.toPath()); // replaced, it may be a hard link to the file in the game project
         try (BufferedWriter bw = new BufferedWriter(new FileWriter(conf))) {
             String[] lang = language.split("_");
             lang[1] = lang[1].toUpperCase();
@@ -200,24 +206,30 @@ public class ConfigurationTask extends PatchTask{
             done = true;
             return;
         }
-        main.patchers.add(new LoLPatcher(main.airversion, "lol_air_client", branch, main.ignoreS_OK, main.force));
-        main.patchers.add(new LoLPatcher(gameversion, "lol_game_client", branch, main.ignoreS_OK, main.force));
-        main.patchers.add(new LoLPatcher(airconfigversion, clientConfigName, branch, main.ignoreS_OK, main.force));
-        main.patchers.add(new LoLPatcher(gamelanguageversion, "lol_game_client_"+language, branch, main.ignoreS_OK, main.force));
+        // the projects do not depend on each other, so they are patched at the same time
+        TaskGraph graph = new TaskGraph(PATCH_THREADS);
+        LoLPatcher air = new LoLPatcher(main.airversion, "lol_air_client", branch, main.ignoreS_OK, main.force);
+        LoLPatcher game = new LoLPatcher(gameversion, "lol_game_client", branch, main.ignoreS_OK, main.force);
+        LoLPatcher airconfig = new LoLPatcher(airconfigversion, clientConfigName, branch, main.ignoreS_OK, main.force);
+        LoLPatcher gamelanguage = new LoLPatcher(gamelanguageversion, "lol_game_client_"+language, branch, main.ignoreS_OK, main.force);
+        for(LoLPatcher lp : new LoLPatcher[]{air, game, airconfig, gamelanguage}){
+            lp.paranoid = main.paranoid;
+            graph.add(lp);
+        }
         
-        main.patchers.add(new CopyTask(
+        PatchTask configCopy = graph.add(new CopyTask(
                 new File("RADS/projects/"+clientConfigName+"/releases/"+airconfigversion+"/deploy/"),
-                new File("RADS/projects/lol_air_client/releases/"+main.airversion+"/deploy/"), true));
+                new File("RADS/projects/lol_air_client/releases/"+main.airversion+"/deploy/"), true), air, airconfig);
         
         
-        main.patchers.add(new SLNPatcher(gameversion, slnversion, main.ignoreS_OK));
+        graph.add(new SLNPatcher(gameversion, slnversion, branch, main.ignoreS_OK), game);
         
-        main.patchers.add(new RunTask(new Runnable() {
+        graph.add(new RunTask(new Runnable() {
             @Override
             public void run() {
                 try {
                     File f = new java.io.File("RADS/projects/lol_air_client/releases/" + main.airversion + "/deploy/locale.properties");
-                    f.createNewFile();
+                    Files.deleteIfExists(f.toPath()); // replaced, the config copy may have linked it to the config project
                     try (BufferedWriter bw = new BufferedWriter(new FileWriter(f))) {
                         String[] lang = language.split("_");
                         lang[1] = lang[1].toUpperCase();
@@ -227,7 +239,8 @@ public class ConfigurationTask extends PatchTask{
                     Logger.getLogger(ConfigurationTask.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
-        }, "Locale config"));
+        }, "Locale config"), configCopy);
+        main.patchers.add(graph);
         
         done = true;
     }
@@ -1,16 +1,11 @@
 package lolpatcher;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
+import nl.xupwup.Util.TreeCopier;
 
 /**
  *
@@ -21,7 +16,7 @@ public class CopyTask extends PatchTask {
     File from;
     File to;
     boolean merge;
-    float percentage = 0;
+    volatile float percentage = 0;
     
     public CopyTask(File from, File to){
         this(from, to, true);
@@ -33,33 +28,10 @@ public class CopyTask extends PatchTask {
         this.merge = merge;
     }
     
-    public void copy(File f, File dir) throws FileNotFoundException, IOException{
-        File f2 = new File(dir, f.getName());
-        if(f.isDirectory()){
-            f2.mkdir();
-            String[] files = f.list();
-            for(String s : files){
-                currentFile = s;
-                copy(new File(f, s), new File(dir, f.getName()));
-            }
-            return;
-        }
-        
-        f2.createNewFile();
-        try (InputStream is = new BufferedInputStream(new FileInputStream(f))) {
-            int read;
-            byte[] buffer = new byte[4096];
-
-            try(OutputStream os = new BufferedOutputStream(new FileOutputStream(f2))){
-                while((read = is.read(buffer)) != -1){
-                    os.write(buffer, 0, read);
-                    if(done) return;
-                    speedStat(read);
-                }
-            }
-        }
-    }
-    
+    /**
+     * How many files are copied at once.
+     */
+    static final int COPY_THREADS = 4;
     
     @Override
     public void patch() throws MalformedURLException, IOException, NoSuchAlgorithmException {
@@ -68,17 +40,30 @@ public class CopyTask extends PatchTask {
         merge &= from.isDirectory();
         
         percentage = 0;
-        if(!merge){
-            copy(from, to);
-        }else{
-            String[] files = from.list();
-            for(String s : files){
-                currentFile = s;
-                copy(new File(from, s), to);
-            }
+        copier().copy(from, merge ? to : new File(to, from.getName()));
+        if(!done){ // otherwise it was cancelled, and percentage says how far it got
+            percentage = 100;
+            done = true;
         }
-        percentage = 100;
-        done = true;
+    }
+    
+    /**
+     * @return a copier that reports its progress to this task
+     */
+    TreeCopier copier(){
+        return new TreeCopier(COPY_THREADS){
+            @Override
+            protected void copied(Path target, long bytes) {
+                currentFile = target.getFileName().toString();
+                diskWrite.add(bytes);
+                percentage = 100 * getProgress();
+            }
+
+            @Override
+            protected boolean isCancelled() {
+                return done;
+            }
+        };
     }
     
     @Override
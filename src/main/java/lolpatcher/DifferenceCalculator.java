@@ -5,96 +5,117 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import lolpatcher.manifest.ManifestFile;
 
 /**
  * "Calculating differences..."
+ *
+ * Checking a file costs very different amounts of time (an archive lookup or
+ * a File.exists), so instead of fixed slices per core the range is split into
+ * small tasks that idle threads can steal.
  * @author Rick
  */
-public class DifferenceCalculator extends Thread{
-    
+public class DifferenceCalculator extends RecursiveAction{
+    private static final long serialVersionUID = 1L;
+    /**
+     * Shared by all patchers, so a run does not start a set of threads per task.
+     */
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final int LEAF_SIZE = 128;
+
     LoLPatcher patcher;
     int off;
     int len;
     ReleaseManifest mf, oldmf;
     FilenameFilter filter;
-    public ArrayList<ManifestFile> result = new ArrayList<>();
+    /**
+     * Indexed like mf.files, shared by all subtasks. Each task only writes its own range.
+     */
+    final boolean[] result;
 
-    public DifferenceCalculator(LoLPatcher patcher, ReleaseManifest mf, ReleaseManifest oldmf, FilenameFilter filter, int off, int len) {
+    private DifferenceCalculator(LoLPatcher patcher, ReleaseManifest mf, ReleaseManifest oldmf, FilenameFilter filter, boolean[] result, int off, int len) {
         this.patcher = patcher;
         this.off = off;
         this.len = len;
         this.mf = mf;
         this.oldmf = oldmf;
         this.filter = filter;
+        this.result = result;
+    }
+
+    /**
+     * @param patcher
+     * @param mf
+     * @param oldmf  the manifest of the installed release, or null
+     * @param filter
+     * @return the files that need to be patched, ordered by release
+     */
+    public static ArrayList<ManifestFile> calculate(LoLPatcher patcher, ReleaseManifest mf, ReleaseManifest oldmf, FilenameFilter filter){
+        boolean[] needed = new boolean[mf.files.length];
+        pool.invoke(new DifferenceCalculator(patcher, mf, oldmf, filter, needed, 0, needed.length));
+
+        int count = 0;
+        for(boolean b : needed){
+            if(b){
+                count++;
+            }
+        }
+        ManifestFile[] files = new ManifestFile[count];
+        for(int i = 0, j = 0; i < needed.length; i++){
+            if(needed[i]){
+                files[j++] = mf.files[i];
+            }
+        }
+        // stable, so files of the same release stay in manifest order
+        Arrays.parallelSort(files, new Comparator<ManifestFile>() {
+            @Override
+            public int compare(ManifestFile o1, ManifestFile o2) {
+                return Integer.compare(o1.getReleaseInt() , o2.getReleaseInt());
+            }
+        });
+        return new ArrayList<>(Arrays.asList(files));
     }
 
     @Override
-    public void run() {
+    protected void compute() {
+        if(len > LEAF_SIZE){
+            int half = len / 2;
+            invokeAll(new DifferenceCalculator(patcher, mf, oldmf, filter, result, off, half),
+                    new DifferenceCalculator(patcher, mf, oldmf, filter, result, off + half, len - half));
+            return;
+        }
         try{
             for(int i = 0; i < len; i++){
                 ManifestFile f = mf.files[off + i];
-                if(filter.accept(null, f.name) && needPatch(f, oldmf)){
-                    result.add(f);
+                if(filter.accept(null, f.getName()) && needPatch(f, oldmf)){
+                    result[off + i] = true;
                 }
             }
-            Collections.sort(result, new Comparator<ManifestFile>() {
-                @Override
-                public int compare(ManifestFile o1, ManifestFile o2) {
-                    return Integer.compare(o1.releaseInt , o2.releaseInt);
-                }
-            });
         } catch (IOException ex) {
             patcher.error = ex;
             ex.printStackTrace();
         }
     }
-    
-    
+
+
     private boolean needPatch(ManifestFile f, ReleaseManifest oldmf) throws IOException{
-        if(f.fileType == 22 || f.fileType == 6){
-            RAFArchive archive = patcher.getArchive(f.release);
-            boolean res = archive.dictionary.get(f.path + f.name) == null;
+        if(f.getFileType() == 22 || f.getFileType() == 6){
+            RAFArchive archive = patcher.getArchive(f.getRelease());
+            boolean res = !archive.contains(f.getPath(), f.getName());
             return res;
         }else{
             if(oldmf != null){
-                ManifestFile oldFile = oldmf.getFile(f.path + f.name);
-                if(oldFile != null && Arrays.equals(oldFile.checksum, f.checksum)
-                        && new java.io.File(patcher.getFileDir(f), f.name).exists()){
-                    
+                ManifestFile oldFile = oldmf.getFile(f.getPath() + f.getName());
+                if(oldFile != null && oldFile.checksumEquals(f)
+                        && new java.io.File(patcher.getFileDir(f), f.getName()).exists()){
+
                     return false;
                 }
             }
             return true;
         }
     }
-    
-    public static ArrayList<ManifestFile> mergeLists(ArrayList<ManifestFile>... lists){
-        ArrayList<ManifestFile> total = new ArrayList<>();
-        int[] indices = new int[lists.length]; // init 0
-        
-        ManifestFile smallest;
-        do{
-            int smallestIndex = -1;
-            smallest = null;
-            for(int i = 0; i < lists.length; i++){
-                if(indices[i] < lists[i].size()){
-                    ManifestFile f = lists[i].get(indices[i]);
-                    if(smallest == null || f.releaseInt < smallest.releaseInt){
-                        smallestIndex = i;
-                        smallest = f;
-                    }
-                }
-            }
-            if(smallest != null){
-                indices[smallestIndex]++;
-                total.add(smallest);
-            }
-        }while(smallest != null);
-        
-        return total;
-    }
-     
 }
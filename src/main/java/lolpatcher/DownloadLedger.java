@@ -0,0 +1,188 @@
+package lolpatcher;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lolpatcher.manifest.ManifestFile;
+
+/**
+ * Remembers how far downloads got, so a patcher that is killed halfway
+ * continues where it stopped instead of starting over.
+ *
+ * Entries are keyed by the file the bytes go to and hold the checksum of the
+ * manifest file, so bytes of an older version of a file are never reused.
+ * Bytes are only recorded after they were flushed to disk, so the file on
+ * disk is never shorter than what the ledger says.
+ *
+ * The ledger is kept in RADS/[type]/[project]/download.ledger, and deleted
+ * when the project is fully patched.
+ * @author Rick
+ */
+public class DownloadLedger {
+    private static final long SAVE_INTERVAL = 2000;
+
+    private final File file;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private boolean changed = false;
+    private long lastSave = 0;
+
+    public static class Entry{
+        public final String checksum;
+        /**
+         * Where the file starts in the .raf.dat, for archive entries. 0 otherwise.
+         */
+        public final long offset;
+        /**
+         * Bytes of the download that are on disk.
+         */
+        public final long committed;
+        /**
+         * The size of the download when it is done.
+         */
+        public final long length;
+
+        Entry(String checksum, long offset, long committed, long length) {
+            this.checksum = checksum;
+            this.offset = offset;
+            this.committed = committed;
+            this.length = length;
+        }
+    }
+
+    public DownloadLedger(String type, String project){
+        file = getFile(type, project);
+        if(file.exists()){
+            Properties props = new Properties();
+            try(InputStream in = new BufferedInputStream(new FileInputStream(file))){
+                props.load(in);
+            } catch (IOException ex) {
+                Logger.getLogger(DownloadLedger.class.getName()).log(Level.WARNING, "Ignoring unreadable download ledger", ex);
+            }
+            for(String key : props.stringPropertyNames()){
+                String[] sp = props.getProperty(key).split(",");
+                try{
+                    entries.put(key, new Entry(sp[0], Long.parseLong(sp[1]), Long.parseLong(sp[2]),
+                            Long.parseLong(sp[3])));
+                }catch(NumberFormatException | ArrayIndexOutOfBoundsException e){
+                    // a broken entry just means that file is downloaded again
+                }
+            }
+        }
+    }
+
+    private static File getFile(String type, String project){
+        return new File("RADS/" + type + "/" + project + "/download.ledger");
+    }
+
+    /**
+     * @param release  the archive version
+     * @param path  the path of the file in the archive
+     * @return the key of a file in an archive
+     */
+    public static String archiveKey(String release, String path){
+        return "archive:" + release + ":" + path;
+    }
+
+    /**
+     * Forgets everything for a project. Call this before moving data around
+     * in a way that makes the recorded offsets invalid.
+     * @param type
+     * @param project
+     */
+    public static void discard(String type, String project){
+        getFile(type, project).delete();
+    }
+
+    /**
+     * @param key  the path of the file
+     * @param f
+     * @return the entry for key, or null if there is none for this version of f
+     */
+    public synchronized Entry get(String key, ManifestFile f){
+        Entry e = entries.get(key);
+        if(e == null || !e.checksum.equals(f.getChecksumHex())){
+            return null;
+        }
+        return e;
+    }
+
+    /**
+     * Records that the first committed bytes of a download are on disk.
+     * @param key
+     * @param f
+     * @param offset  where the data starts in the archive, or 0
+     * @param committed
+     * @param length  the size of the download
+     */
+    public synchronized void commit(String key, ManifestFile f, long offset, long committed, long length){
+        entries.put(key, new Entry(f.getChecksumHex(), offset, committed, length));
+        changed = true;
+    }
+
+    /**
+     * Forgets a download, when it is finished.
+     * @param key 
+     */
+    public synchronized void remove(String key){
+        if(entries.remove(key) != null){
+            changed = true;
+        }
+    }
+
+    /**
+     * @param prefix
+     * @return the end of the furthest archive region reserved by an entry whose
+     * key starts with prefix, or 0
+     */
+    public synchronized long getReservedEnd(String prefix){
+        long end = 0;
+        for(Map.Entry<String, Entry> e : entries.entrySet()){
+            if(e.getKey().startsWith(prefix)){
+                end = Math.max(end, e.getValue().offset + e.getValue().length);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Writes the ledger, unless that was done less than a few seconds ago.
+     * The file is replaced in one go, so a crash while writing leaves the
+     * old one.
+     * @param force  write even if it was written recently
+     */
+    public synchronized void save(boolean force){
+        long now = System.currentTimeMillis();
+        if(!changed || !force && now - lastSave < SAVE_INTERVAL){
+            return;
+        }
+        Properties props = new Properties();
+        for(Map.Entry<String, Entry> me : entries.entrySet()){
+            Entry e = me.getValue();
+            props.setProperty(me.getKey(), e.checksum + "," + e.offset + "," + e.committed + "," + e.length);
+        }
+        try{
+            StreamUtils.storeAtomically(props, file);
+            changed = false;
+            lastSave = now;
+        } catch (IOException ex) {
+            // not fatal, a restart just downloads a bit more
+            Logger.getLogger(DownloadLedger.class.getName()).log(Level.WARNING, "Could not write the download ledger", ex);
+        }
+    }
+
+    /**
+     * Deletes the ledger, when everything is downloaded.
+     */
+    public synchronized void delete(){
+        entries.clear();
+        changed = false;
+        file.delete();
+    }
+}
@@ -7,13 +7,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
 import static lolpatcher.PatchTask.speedStat;
 import lolpatcher.manifest.ManifestFile;
+import nl.xupwup.Util.BufferPool;
+import nl.xupwup.Util.ConnectionPool;
 import nl.xupwup.Util.MiniHttpClient;
 
 /**
@@ -31,22 +36,19 @@ public class FileDownloadWorker extends Worker{
     @Override
     public void run() {
         try {
-            try (MiniHttpClient htc = new MiniHttpClient("l3cdn.riotgames.com")) {
-                htc.throwExceptionWhenNot200 = true;
-                htc.setErrorHandler(defaultHttpErrorHandler);
-                
-                ManifestFile task;
-                while(true){
-                    synchronized(patcher.filesToPatch){
-                        if(patcher.filesToPatch.isEmpty() || patcher.done || patcher.error != null){
-                            break;
-                        }
-                        task = patcher.filesToPatch.remove(0);
+            ArrayList<ManifestFile> batch = new ArrayList<>(PIPELINE_DEPTH);
+            while(true){
+                batch.clear();
+                synchronized(patcher.filesToPatch){
+                    if(patcher.filesToPatch.isEmpty() || patcher.done || patcher.error != null){
+                        break;
                     }
-                    startTime = System.currentTimeMillis();
-                    current = task.name;
-                    downloadFile(task, htc);
-                    startTime = -1;
+                    while(batch.size() < PIPELINE_DEPTH && !patcher.filesToPatch.isEmpty()){
+                        batch.add(patcher.filesToPatch.remove(0));
+                    }
+                }
+                try (ConnectionPool.Connection con = connect()) {
+                    downloadFiles(batch, con.client);
                 }
             }
 
@@ -59,46 +61,187 @@ public class FileDownloadWorker extends Worker{
     }
     
     
-    private void downloadFile(ManifestFile f, MiniHttpClient hc) throws MalformedURLException, IOException, NoSuchAlgorithmException{
+    /**
+     * Checks which of the files actually need to be downloaded, requests all 
+     * of those at once and then stores the responses as they come in.
+     */
+    private void downloadFiles(ArrayList<ManifestFile> batch, MiniHttpClient hc) throws IOException, NoSuchAlgorithmException{
+        ArrayList<ManifestFile> requested = new ArrayList<>(batch.size());
+        ArrayList<java.io.File> targets = new ArrayList<>(batch.size());
+        ArrayList<ManifestFile> resumed = new ArrayList<>();
+        ArrayList<java.io.File> resumedTargets = new ArrayList<>();
+        for(ManifestFile f : batch){
+            startTime = System.currentTimeMillis();
+            current = f.getName();
+            java.io.File target = prepareFile(f);
+            if(target != null){
+                if(getResumeOffset(f, target) > 0){
+                    resumed.add(f); // these need a range request, which can not be pipelined
+                    resumedTargets.add(target);
+                }else{
+                    hc.enqueue(getUrl(f));
+                    requested.add(f);
+                    targets.add(target);
+                }
+            }
+            startTime = -1;
+        }
+        for(int i = 0; i < requested.size(); i++){
+            if(patcher.done){
+                return;
+            }
+            ManifestFile f = requested.get(i);
+            startTime = System.currentTimeMillis();
+            current = f.getName();
+            downloadFile(f, targets.get(i), hc.next(), 0);
+            startTime = -1;
+        }
+        for(int i = 0; i < resumed.size(); i++){
+            if(patcher.done){
+                return;
+            }
+            ManifestFile f = resumed.get(i);
+            startTime = System.currentTimeMillis();
+            current = f.getName();
+            long offset = getResumeOffset(f, resumedTargets.get(i));
+            downloadFile(f, resumedTargets.get(i), hc.get(getUrl(f), offset, -1), offset);
+            startTime = -1;
+        }
+    }
+    
+    /**
+     * @return the file to download f to, or null if it is already there
+     */
+    private java.io.File prepareFile(ManifestFile f) throws IOException{
         progress = 0;
         alternative = false;
         java.io.File targetDir = new java.io.File(patcher.getFileDir(f));
-        java.io.File target = new java.io.File(targetDir.getPath() + "/" + f.name);
+        java.io.File target = new java.io.File(targetDir.getPath() + "/" + f.getName());
         targetDir.mkdirs();
         
+        if(getResumeOffset(f, target) > 0){
+            return target; // an earlier run got halfway, hashing it is pointless
+        }
         if(!target.createNewFile() && (patcher.force || patcher.forceSingleFiles)){
+            if(patcher.isVerified(f, target)){
+                return null; // it was checked before, and did not change since
+            }
             alternative = true;
             if(checkHash(new BufferedInputStream(new FileInputStream(target)), patcher, f)){
-                return;
+                patcher.setVerified(f, target);
+                return null;
             }
         }
+        return target;
+    }
+    
+    private String getUrl(ManifestFile f){
+        return "/releases/"+patcher.branch+"/"+patcher.type+"/"
+            + patcher.project + "/releases/" + f.getRelease() + "/files/" + 
+            f.getPath().replaceAll(" ", "%20") + f.getName().replaceAll(" ", "%20") + (f.getFileType() > 0 ? ".compressed" : "");
+    }
+    
+    /**
+     * The file the downloaded bytes go to. For compressed files that is a .part
+     * file next to the target, so a download can be resumed without the state
+     * of the inflater. Compressed files smaller than a checkpoint are only
+     * inflated, they are not worth writing twice.
+     * @return the file, or null if the download can not be resumed
+     */
+    private static java.io.File getRawFile(ManifestFile f, java.io.File target){
+        if(f.getFileType() <= 0){
+            return target;
+        }
+        return f.getSizeCompressed() >= CHECKPOINT_BYTES ? new java.io.File(target.getPath() + ".part") : null;
+    }
+    
+    /**
+     * @return the number of bytes of f that an earlier run downloaded, 0 if 
+     * it has to start over
+     */
+    private long getResumeOffset(ManifestFile f, java.io.File target){
+        java.io.File rawFile = getRawFile(f, target);
+        if(rawFile == null){
+            return 0;
+        }
+        DownloadLedger.Entry e = patcher.ledger.get(target.getPath(), f);
+        if(e == null || rawFile.length() < e.committed){
+            return 0;
+        }
+        return e.committed;
+    }
+    
+    /**
+     * @param offset  where the response body starts. The bytes before it are already in the raw file.
+     */
+    private void downloadFile(ManifestFile f, java.io.File target, MiniHttpClient.HttpResult hte, long offset) throws MalformedURLException, IOException, NoSuchAlgorithmException{
         progress = 0;
+        alternative = false;
+        String key = target.getPath();
+        java.io.File rawFile = getRawFile(f, target);
+        long total = offset;
         
-        String url = "/releases/"+patcher.branch+"/"+patcher.type+"/"
-            + patcher.project + "/releases/" + f.release + "/files/" + 
-            f.path.replaceAll(" ", "%20") + f.name.replaceAll(" ", "%20") + (f.fileType > 0 ? ".compressed" : "");
-
-        MiniHttpClient.HttpResult hte = hc.get(url);
-        InputStream fileStream = hte.in;
-        long total = 0;
-        
-        try(InputStream in = (
-                f.fileType > 0 ? 
-                    new InflaterInputStream(fileStream) :
-                    fileStream)){
-            
-            try(OutputStream fo = new BufferedOutputStream(new FileOutputStream(target))){
+        if(offset > 0){
+            try(RandomAccessFile raf = new RandomAccessFile(rawFile, "rw")){
+                raf.setLength(offset); // anything after the last checkpoint may be garbage
+            }
+        }else if(rawFile != null){
+            Files.deleteIfExists(rawFile.toPath());
+        }
+        if(rawFile != target){
+            Files.deleteIfExists(target.toPath()); // inflated again from the start
+        }
+        // files are replaced instead of overwritten, because the old one may be
+        // hard linked into a solution (see TreeCopier)
+        FileOutputStream rawStream = rawFile == null ? null : new FileOutputStream(rawFile, offset > 0);
+        // compressed files are inflated into the target, the others only have to be checked
+        VerifyingOutputStream verifier = new VerifyingOutputStream(
+                f.getFileType() > 0 ? new BufferedOutputStream(new FileOutputStream(target)) : null, f, false);
+        try(OutputStream raw = rawStream == null ? null : new BufferedOutputStream(rawStream);
+                OutputStream inflated = f.getFileType() > 0 ? new InflaterOutputStream(verifier) : verifier){
+            if(offset > 0){
+                try(InputStream in = new FileInputStream(rawFile)){ // rebuild what the earlier run inflated and hashed
+                    StreamUtils.copy(in, inflated, offset);
+                }
+            }
+            byte[] buffer = BufferPool.IO.take();
+            try(InputStream in = hte.in){
                 int read;
-                byte[] buffer = new byte[4096];
+                long checkpoint = total + CHECKPOINT_BYTES;
                 while((read = in.read(buffer)) != -1){
-                    fo.write(buffer, 0, read);
+                    if(raw != null){
+                        raw.write(buffer, 0, read);
+                    }
+                    inflated.write(buffer, 0, read);
                     speedStat(read);
+                    PatchTask.diskWrite.add(read);
+                    if(f.getFileType() > 0){
+                        PatchTask.inflate.add(read);
+                    }
                     total += read;
-                    progress = (float) total / f.sizeCompressed;
+                    progress = (float) total / f.getSizeCompressed();
+                    if(raw != null && (total >= checkpoint || patcher.done)){
+                        raw.flush();
+                        rawStream.getFD().sync();
+                        patcher.ledger.commit(key, f, 0, total, f.getSizeCompressed());
+                        patcher.ledger.save(patcher.done);
+                        checkpoint = total + CHECKPOINT_BYTES;
+                    }
                     if(patcher.done) return;
                 }
+            }finally{
+                BufferPool.IO.give(buffer);
             }
         }
+        if(rawFile != null && rawFile != target){
+            rawFile.delete();
+        }
+        patcher.ledger.remove(key);
+        patcher.ledger.save(false);
+        if(!verifier.isVerified()){
+            throw new IOException("Checksum mismatch for downloaded file " + target);
+        }
+        patcher.setVerified(f, target);
         progress = 1;
     }
 }
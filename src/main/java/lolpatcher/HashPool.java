@@ -0,0 +1,138 @@
+package lolpatcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import lolpatcher.manifest.ManifestFile;
+import nl.xupwup.Util.BufferPool;
+
+/**
+ * Checks archive entries against the manifest on a thread per core. Inflating
+ * and hashing is cpu work, so the download threads hand it off and keep
+ * downloading instead of waiting for it. Neither verify nor verifyExisting
+ * blocks.
+ *
+ * Shared by all patchers, like the pool of the DifferenceCalculator.
+ * @author Rick
+ */
+public class HashPool {
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    /**
+     * Checks of existing entries that may be queued or running at once. The
+     * feeder waits for a slot before it queues the next one, so the checks of
+     * downloaded entries never end up behind all of them.
+     */
+    private static final Semaphore slots = new Semaphore(THREADS * 4);
+    private static final ExecutorService pool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Hasher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static final ExecutorService feeder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Hash feeder");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Queues a check of an archive entry that was just downloaded. Entries
+     * that are fine are recorded with patcher.setVerified. This does not block.
+     * @param patcher
+     * @param archive
+     * @param raff  the entry
+     * @param f  the file it should be
+     * @return true if the entry matches the checksum of f, or if the patcher
+     * was stopped before it was checked
+     */
+    public static Future<Boolean> verify(LoLPatcher patcher, RAFArchive archive,
+            RAFArchive.RafFile raff, ManifestFile f){
+        return pool.submit(checker(patcher, archive, raff, f));
+    }
+
+    /**
+     * Queues checks of entries that were already in an archive. They are
+     * handed to the hashers a few at a time by a feeder thread, so this returns
+     * at once and the caller can start downloading.
+     * @param patcher
+     * @param archive
+     * @param entries
+     * @param files  the files the entries should be
+     * @return one result per entry, like verify
+     */
+    public static ArrayList<Future<Boolean>> verifyExisting(LoLPatcher patcher, RAFArchive archive,
+            List<RAFArchive.RafFile> entries, List<ManifestFile> files){
+        final ArrayList<FutureTask<Boolean>> checks = new ArrayList<>(entries.size());
+        for(int i = 0; i < entries.size(); i++){
+            checks.add(new FutureTask<>(checker(patcher, archive, entries.get(i), files.get(i))));
+        }
+        feeder.execute(new Runnable() {
+            @Override
+            public void run() {
+                for(final FutureTask<Boolean> check : checks){
+                    if(check.isDone()){
+                        continue; // cancelled
+                    }
+                    slots.acquireUninterruptibly();
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try{
+                                check.run();
+                            }finally{
+                                slots.release();
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        return new ArrayList<Future<Boolean>>(checks);
+    }
+
+    private static Callable<Boolean> checker(final LoLPatcher patcher, final RAFArchive archive,
+            final RAFArchive.RafFile raff, final ManifestFile f){
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return check(patcher, archive, raff, f);
+            }
+        };
+    }
+
+    private static boolean check(LoLPatcher patcher, RAFArchive archive, RAFArchive.RafFile raff, ManifestFile f){
+        if(patcher.done || patcher.error != null){
+            return true;
+        }
+        VerifyingOutputStream verifier = new VerifyingOutputStream(null, f, f.getFileType() == 22);
+        byte[] buffer = BufferPool.IO.take();
+        try(InputStream in = archive.readFile(raff)){
+            int read;
+            while((read = in.read(buffer)) != -1){
+                verifier.write(buffer, 0, read);
+            }
+            verifier.close();
+        }catch(IOException e){
+            return false; // for example broken deflate data
+        }finally{
+            BufferPool.IO.give(buffer);
+        }
+        if(verifier.isVerified()){
+            patcher.setVerified(f, raff.startindex, raff.size);
+        }
+        return verifier.isVerified();
+    }
+}
@@ -12,7 +12,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DeflaterInputStream;
@@ -53,7 +53,14 @@ public class LoLPatcher extends PatchTask{
     public boolean forceSingleFiles = false;
     private FilenameFilter filter;
     
-    private final HashMap<String, RAFArchive> archives;
+    private final ConcurrentHashMap<String, RAFArchive> archives;
+    DownloadLedger ledger;
+    VerificationCache verification;
+    /**
+     * Hash everything during a thorough repair, even files that were verified
+     * before and did not change since.
+     */
+    public boolean paranoid = false;
     float percentageInArchive;
     
     public RingBuffer<ManifestFile> filesToPatch;
@@ -81,7 +88,7 @@ public class LoLPatcher extends PatchTask{
         this.ignoreS_OK = ignoreS_OK;
         this.force = force;
         this.branch = branch;
-        archives = new HashMap<>();
+        archives = new ConcurrentHashMap<>();
         filter = new FilenameFilter() {
             @Override
             public boolean accept(java.io.File dir, String name) {
@@ -142,6 +149,8 @@ public class LoLPatcher extends PatchTask{
                 }
             }
         }
+        ledger = new DownloadLedger(type, project);
+        verification = new VerificationCache(type, project);
         currentFile = "Reading manifest";
         ReleaseManifest mf = ReleaseManifest.getReleaseManifest(project, targetVersion, branch, type);
 
@@ -149,10 +158,10 @@ public class LoLPatcher extends PatchTask{
         ArrayList<ManifestFile> files = new ArrayList<>();
         if(force || forceSingleFiles){
             for(ManifestFile f : mf.files){
-                if(!filter.accept(null, f.name)){
+                if(!filter.accept(null, f.getName())){
                     continue;
                 }
-                if(f.fileType == 6 || f.fileType == 22){
+                if(f.getFileType() == 6 || f.getFileType() == 22){
                     if(force){
                         files.add(f);
                     }
@@ -189,7 +198,7 @@ public class LoLPatcher extends PatchTask{
         Collections.sort(files, new Comparator<ManifestFile>() {
             @Override
             public int compare(ManifestFile o1, ManifestFile o2) {
-                return Integer.compare(o1.releaseInt , o2.releaseInt);
+                return Integer.compare(o1.getReleaseInt() , o2.getReleaseInt());
             }
         });
         currentFile = "Organizing files";
@@ -198,7 +207,7 @@ public class LoLPatcher extends PatchTask{
         int nrOfArchiveFiles = 0;
         
         for(ManifestFile f : files){
-            if(f.fileType == 22 || f.fileType == 6){
+            if(f.getFileType() == 22 || f.getFileType() == 6){
                 nrOfArchiveFiles++;
             }else{
                 nrOfFiles++;
@@ -211,9 +220,9 @@ public class LoLPatcher extends PatchTask{
         
         Archive lastArchive = null;
         for(ManifestFile f : files){
-            if(f.fileType == 22 || f.fileType == 6){
-                if(lastArchive == null || !lastArchive.versionName.equals(f.release)){
-                    lastArchive = new Archive(f.release, new ArrayList<ManifestFile>());
+            if(f.getFileType() == 22 || f.getFileType() == 6){
+                if(lastArchive == null || !lastArchive.versionName.equals(f.getRelease())){
+                    lastArchive = new Archive(f.getRelease(), new ArrayList<ManifestFile>());
                     atp.add(lastArchive);
                 }
                 lastArchive.files.add(f);
@@ -269,15 +278,49 @@ public class LoLPatcher extends PatchTask{
         archives.clear();
         
         managedFilesCleanup(mf);
+        verification.save(true);
         if(!done && error == null){
             new java.io.File("RADS/"+type + "/" + project + "/releases/"
                 + targetVersion + "/S_OK").createNewFile();
+            ledger.delete();
             done = true;
+        }else{
+            ledger.save(true);
         }
+        Logger.getLogger(LoLPatcher.class.getName()).log(Level.INFO, "{0} patched. {1}, {2}, {3}, {4}",
+                new Object[]{project, download, hash, inflate, diskWrite});
+    }
+    
+    /**
+     * @param f
+     * @param file  where f is
+     * @return whether file was verified before and does not have to be hashed again
+     */
+    boolean isVerified(ManifestFile f, java.io.File file){
+        return !paranoid && verification.isVerified(f, file);
+    }
+    
+    /**
+     * @param f  a file in an archive
+     * @param offset  where it is in the .raf.dat
+     * @param size
+     * @return whether the entry was verified before and does not have to be hashed again
+     */
+    boolean isVerified(ManifestFile f, long offset, long size){
+        return !paranoid && verification.isVerified(f, offset, size);
+    }
+    
+    void setVerified(ManifestFile f, java.io.File file){
+        verification.setVerified(f, file);
+    }
+    
+    void setVerified(ManifestFile f, long offset, long size){
+        verification.setVerified(f, offset, size);
     }
     
     public void syncAllArchives() throws IOException{
-        for(RAFArchive a : archives.values()){
+        // each archive locks itself, so the downloads opening archives do not wait for this
+        for(RAFArchive a : new ArrayList<>(archives.values())){
             a.sync();
         }
     }
@@ -317,27 +360,7 @@ public class LoLPatcher extends PatchTask{
     }
     
     private ArrayList<ManifestFile> cullFiles(ReleaseManifest mf, ReleaseManifest oldmf){
-        int cores = Runtime.getRuntime().availableProcessors();
-        DifferenceCalculator[] calculators = new DifferenceCalculator[cores];
-        int slicesize = 1 + mf.files.length / cores;
-        for(int i = 0; i < calculators.length; i++){
-            int off = slicesize * i;
-            int len = Math.max(0, Math.min(mf.files.length - off, slicesize));
-            calculators[i] = new DifferenceCalculator(this, mf, oldmf, filter, off, len);
-            calculators[i].start();
-        }
-        for(DifferenceCalculator c : calculators){
-            try {
-                c.join();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(LoLPatcher.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-        ArrayList<ManifestFile>[] filesArr = new ArrayList[cores];
-        for(int i = 0; i < calculators.length; i++){
-            filesArr[i] = calculators[i].result;
-        }
-        return DifferenceCalculator.mergeLists(filesArr);
+        return DifferenceCalculator.calculate(this, mf, oldmf, filter);
     }
     
     private void managedFilesCleanup(ReleaseManifest mf){
@@ -347,7 +370,7 @@ public class LoLPatcher extends PatchTask{
             for (String v : versions){
                 boolean found = false;
                 for(ManifestFile f : mf.files){
-                    if(f.fileType == 5 && f.release.equals(v)){
+                    if(f.getFileType() == 5 && f.getRelease().equals(v)){
                         found = true;
                         break;
                     }
@@ -361,31 +384,36 @@ public class LoLPatcher extends PatchTask{
     
     public RAFArchive getArchive(String s) throws IOException{
         RAFArchive rd = archives.get(s);
-        if(rd == null){
-            String folder = "RADS/"+type + "/" + project + "/filearchives/"
-                + s + "/";
-            new java.io.File(folder).mkdirs();
-            String filename = "Archive_1.raf";
-            String[] files = new java.io.File(folder).list(new FilenameFilter() {
-                @Override
-                public boolean accept(java.io.File dir, String name) {
-                    return name.matches("Archive_[0-9]+\\.raf");
-                }
-            });
-            if(files.length > 0){
-                rd = new RAFArchive(new java.io.File(folder+ files[0]), new java.io.File(folder+ files[0] + ".dat"));
-                synchronized(archives){
-                    archives.put(s, rd);
+        if(rd != null){
+            return rd;
+        }
+        synchronized(archives){ // so two threads do not open the same archive twice
+            rd = archives.get(s);
+            if(rd == null){
+                String folder = "RADS/"+type + "/" + project + "/filearchives/"
+                    + s + "/";
+                new java.io.File(folder).mkdirs();
+                String filename = "Archive_1.raf";
+                String[] files = new java.io.File(folder).list(new FilenameFilter() {
+                    @Override
+                    public boolean accept(java.io.File dir, String name) {
+                        return name.matches("Archive_[0-9]+\\.raf");
+                    }
+                });
+                if(files.length > 0){
+                    rd = new RAFArchive(new java.io.File(folder+ files[0]), new java.io.File(folder+ files[0] + ".dat"));
+                }else{
+                    try {
+                        rd = new RAFArchive(folder + filename);
+                    } catch (IOException ex) {
+                        Logger.getLogger(LoLPatcher.class.getName()).log(Level.SEVERE, null, ex);
+                        return null;
+                    }
                 }
-                return rd;
-            }
-            try {
-                rd = new RAFArchive(folder + filename);
-                synchronized(archives){
-                    archives.put(s, rd);
+                if(ledger != null){ // keep the space of downloads that can be resumed
+                    rd.reserve(ledger.getReservedEnd(DownloadLedger.archiveKey(s, "")));
                 }
-            } catch (IOException ex) {
-                Logger.getLogger(LoLPatcher.class.getName()).log(Level.SEVERE, null, ex);
+                archives.put(s, rd);
             }
         }
         return rd;
@@ -394,8 +422,8 @@ public class LoLPatcher extends PatchTask{
     
     
     public final String getFileDir(ManifestFile f){
-        return "RADS/"+type + "/" + project + (f.fileType == 5 ? "/managedfiles/" : "/releases/")
-                + (f.fileType == 5 ? f.release : targetVersion) + (f.fileType == 5 ? "/" : "/deploy/") + f.path;
+        return "RADS/"+type + "/" + project + (f.getFileType() == 5 ? "/managedfiles/" : "/releases/")
+                + (f.getFileType() == 5 ? f.getRelease() : targetVersion) + (f.getFileType() == 5 ? "/" : "/deploy/") + f.getPath();
     }
     
     
@@ -431,17 +459,12 @@ public class LoLPatcher extends PatchTask{
 		System.out.println("Version: " + version);
 		ReleaseManifest file = ReleaseManifest.getReleaseManifest("lol_game_client_en_us", version, "live", "projects");//.download("live", "projects", "lol_game_client_en_us", version);
 		for (ManifestFile manifest : file.files)
-			System.out.println(manifest.path + "/" + manifest.name);
+			System.out.println(manifest.getPath() + "/" + manifest.getName());
 		
         RAFArchive rafArchive = new RAFArchive(new File("RADS\\projects\\lol_game_client\\filearchives\\0.0.0.235\\Archive_1.raf"), 
                                                new File("RADS\\projects\\lol_game_client\\filearchives\\0.0.0.235\\Archive_1.raf.dat"));
         
-//        for(RAFArchive.RafFile fi : rafArchive.fileList){
-//            if(fi.name.contains("Talon.inibin")){
-//                System.out.println(fi);
-//            }
-//        }
-        RAFArchive.RafFile rfi = rafArchive.dictionary.get("DATA/Characters/Talon/Talon.inibin");
+        RAFArchive.RafFile rfi = rafArchive.getFile("DATA/Characters/Talon/Talon.inibin");
         System.out.println(rfi.toString());
         System.out.println("iscr" + rafArchive.isCompressed(rfi));
         
@@ -54,7 +54,7 @@ public class Main extends GLFramework {
     Flow flow;
     public String airversion;
     long patcherStartTime;
-    boolean ignoreS_OK = false, force = false;
+    boolean ignoreS_OK = false, force = false, paranoid = false;
     Window repairWindow;
     boolean purgeAfterwards = false;
     boolean changeRegionSettings = false;
@@ -87,27 +87,46 @@ public class Main extends GLFramework {
         repairWindow = new Window(new Point(5,5), "Options");
         final Option sokopt = new Option("Quick repair", null, null, ignoreS_OK);
         repairWindow.addComponent(sokopt);
-        final Option forcopt = new Option("Thorough repair", new Listener() {
+        final Option forcopt = new Option("Thorough repair", null, null, force);
+        final Option paranoidopt = new Option("Paranoid repair", new Listener() {
+            @Override
+            public void click(Component c) {
+                paranoid = ((CheckBox) c).checked;
+                if(paranoid){
+                    force = true;
+                    ignoreS_OK = true;
+                }
+                forcopt.cb.checked = force;
+                sokopt.cb.checked = ignoreS_OK;
+            }
+        }, null, paranoid);
+        forcopt.cb.call = new Listener() {
             @Override
             public void click(Component c) {
                 force = ((CheckBox) c).checked;
                 if(force){
                     ignoreS_OK = true;
+                }else{
+                    paranoid = false;
                 }
                 sokopt.cb.checked = ignoreS_OK;
+                paranoidopt.cb.checked = paranoid;
             }
-        }, null, ignoreS_OK);
+        };
         sokopt.cb.call = new Listener() {
             @Override
             public void click(Component c) {
                 ignoreS_OK = ((CheckBox) c).checked;
                 if(!ignoreS_OK){
                     force = false;
+                    paranoid = false;
                 }
                 forcopt.cb.checked = force;
+                paranoidopt.cb.checked = paranoid;
             }
         };
         repairWindow.addComponent(forcopt);
+        repairWindow.addComponent(paranoidopt);
         repairWindow.addComponent(new Option("Change region settings", new Listener() {
             @Override
             public void click(Component c) {
@@ -256,7 +275,7 @@ public class Main extends GLFramework {
             }
             PatchTask lp = patcher;
             String currentFile = lp.currentFile;
-            int speed = LoLPatcher.speed;
+            int speed = PatchTask.getSpeed();
             float percentage = lp.getPercentage();
 
             long spent = (System.currentTimeMillis() - patcherStartTime);
@@ -9,14 +9,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.InflaterOutputStream;
 import lolpatcher.manifest.ManifestFile;
+import nl.xupwup.Util.BufferPool;
+import nl.xupwup.Util.ByteRanges;
+import nl.xupwup.Util.ConnectionPool;
 import nl.xupwup.Util.MiniHttpClient;
 
 /**
@@ -25,49 +33,74 @@ import nl.xupwup.Util.MiniHttpClient;
  */
 public class PackageDownloader {
 
-    MiniHttpClient hc;
+    static final String CDN = "l3cdn.riotgames.com";
+    final MiniHttpClient.ErrorHandler<Exception> errorHandler = new MiniHttpClient.ErrorHandler<Exception>() {
+        @Override
+        public int handle(Exception t) {
+            System.err.println("ioex!!");
+            t.printStackTrace();
+            return 5000;
+        }
+    };
     final HashMap<String, PackageFile> fileMap; // name -> packf
     final HashMap<String, Package> packagefiles; // binname -> filelist
     final String target, project, branch;
     long totalBytes = 0;
-    long lastSyncTime;
+    final AtomicLong lastSyncTime = new AtomicLong();
+    final AtomicLong bytesRead = new AtomicLong();
+    /**
+     * The number of ranges that are downloaded at the same time, each over its 
+     * own connection.
+     */
+    public int connections = 4;
+    private volatile IOException failure;
     
     
     private class Package{
         String name;
         ArrayList<PackageFile> packages = new ArrayList<>();
-        ArrayList<OpenFile> openfiles = new ArrayList<>();
-        int index = 0;
         
         Package(String name){
             this.name = name;
         }
-        PackageFile next(){
-            return packages.get(index);
-        }
-        OpenFile openFile(PackageFile pf, LoLPatcher p) throws IOException{
-            OpenFile of = new OpenFile(pf, p);
-            openfiles.add(of);
-            return of;
-        }
-        private class OpenFile{
-            OutputStream os;
-            final PackageFile pf;
+    }
+    
+    private class OpenFile{
+        OutputStream os;
+        final PackageFile pf;
+        final VerifyingOutputStream verifier;
+        RAFArchive.RafFileOutputStream entry; // for archived files
+        File target; // for the others
 
-            OpenFile(PackageFile pf, LoLPatcher p) throws IOException {
-                this.pf = pf;
-                int fileType = pf.mf.fileType;
-                if(fileType == 6 || fileType == 22){
-                    os = p.getArchive(pf.mf.release).writeFile(pf.mf.path + pf.mf.name, pf.mf);
-                }else{
-                    File targetDir = new File(p.getFileDir(pf.mf));
-                    File target = new File(targetDir, pf.mf.name);
-                    targetDir.mkdirs();
-                    os = new BufferedOutputStream(new FileOutputStream(target));
-                }
-                if(fileType > 0 && fileType != 22){
-                    os = new InflaterOutputStream(os);
-                }
+        OpenFile(PackageFile pf, LoLPatcher p) throws IOException {
+            this.pf = pf;
+            int fileType = pf.mf.getFileType();
+            if(fileType == 6 || fileType == 22){
+                entry = p.getArchive(pf.mf.getRelease()).writeFile(pf.mf.getPath() + pf.mf.getName(), pf.mf, -1, 0);
+                os = new BufferedOutputStream(entry);
+            }else{
+                File targetDir = new File(p.getFileDir(pf.mf));
+                target = new File(targetDir, pf.mf.getName());
+                targetDir.mkdirs();
+                Files.deleteIfExists(target.toPath()); // may be hard linked, see TreeCopier
+                os = new BufferedOutputStream(new FileOutputStream(target));
+            }
+            // archives keep compressed files compressed, but the checksum is over the inflated data
+            os = verifier = new VerifyingOutputStream(os, pf.mf, fileType == 22);
+            if(fileType > 0 && fileType != 22){
+                os = new InflaterOutputStream(os);
+            }
+        }
+        
+        void close(LoLPatcher p) throws IOException{
+            os.close();
+            if(!verifier.isVerified()){
+                throw new IOException("Checksum mismatch for " + pf.mf.getPath() + pf.mf.getName() + " in " + pf.binName);
+            }
+            if(entry != null){
+                p.setVerified(pf.mf, entry.getStart(), entry.getCount());
+            }else{
+                p.setVerified(pf.mf, target);
             }
         }
     }
@@ -97,12 +130,25 @@ public class PackageDownloader {
         }
     }
     
+    /**
+     * A part of a bin file. The files in it are not shared with any other range,
+     * so ranges can be downloaded at the same time, in any order. It may contain
+     * small gaps that nobody needs, if skipping them would cost more than 
+     * downloading them.
+     */
     private class Range{
         long min, max;
+        long position; // everything before this was pushed to the files
+        final Package pack;
+        int index; // the next file in pack.packages to open
+        final ArrayList<OpenFile> openfiles = new ArrayList<>();
 
-        public Range(long min, long max) {
+        public Range(Package pack, int first, long min, long max) {
+            this.pack = pack;
+            this.index = first;
             this.min = min;
             this.max = max;
+            this.position = min;
         }
 
         @Override
@@ -113,7 +159,38 @@ public class PackageDownloader {
     }
     
     
+    /**
+     * Ranges of one bin file that are asked for in one (multi-range) request.
+     */
+    private class Request{
+        final Package pack;
+        final ArrayList<Range> ranges = new ArrayList<>();
+        long size = 0;
+
+        Request(Package pack) {
+            this.pack = pack;
+        }
+    }
+    
     HashMap<String, ArrayList<Range>> ranges;
+    ArrayList<Request> requests = new ArrayList<>();
+    
+    /**
+     * Gaps between needed files smaller than this are downloaded rather than
+     * skipped. This is about the number of bytes that can be downloaded in the 
+     * time an extra request costs (latency times bandwidth).
+     */
+    public long requestCost = 64 * 1024;
+    /**
+     * Ranges and requests are not merged beyond this size, so there are enough
+     * of them to keep all connections busy.
+     */
+    public long maxRangeSize = 8 * 1024 * 1024;
+    /**
+     * The maximum number of ranges in one request. 1 disables multi-range
+     * requests. This is set to 1 when the server does not handle them.
+     */
+    public volatile int maxRangesPerRequest = 16;
     
     public PackageDownloader(String target, String project, String branch) throws IOException{
         this.target = target;
@@ -121,19 +198,18 @@ public class PackageDownloader {
         this.branch = branch;
         ranges = new HashMap<>();
         packagefiles = new HashMap<>();
-        hc = new MiniHttpClient("l3cdn.riotgames.com");
-        hc.throwExceptionWhenNot200 = true;
-        hc.setErrorHandler(new MiniHttpClient.ErrorHandler<Exception>() {
-            @Override
-            public int handle(Exception t) {
-                System.err.println("ioex!!");
-                t.printStackTrace();
-                return 5000;
-            }
-        });
         fileMap = new HashMap<>();
-        MiniHttpClient.HttpResult get = hc.get("/releases/"+branch+"/projects/" + project + "/releases/"+target + "/packages/files/packagemanifest");
-        readManifest(get.in);
+        try(ConnectionPool.Connection con = connect()){
+            MiniHttpClient.HttpResult get = con.client.get("/releases/"+branch+"/projects/" + project + "/releases/"+target + "/packages/files/packagemanifest");
+            readManifest(get.in);
+        }
+    }
+    
+    private ConnectionPool.Connection connect() throws IOException{
+        ConnectionPool.Connection con = ConnectionPool.getShared().acquire(CDN);
+        con.client.throwExceptionWhenNot200 = true;
+        con.client.setErrorHandler(errorHandler);
+        return con;
     }
     
     private void readManifest(InputStream in) throws IOException{
@@ -153,8 +229,8 @@ public class PackageDownloader {
     
     private PackageFile getPackageFile(ManifestFile f){
         String u = "/projects/"
-                + project + "/releases/" + f.release + "/files/" + 
-                f.path + f.name + (f.fileType > 0 ? ".compressed" : "");
+                + project + "/releases/" + f.getRelease() + "/files/" + 
+                f.getPath() + f.getName() + (f.getFileType() > 0 ? ".compressed" : "");
         PackageFile pf = fileMap.get(u);
         pf.mf = f;
         return pf;
@@ -186,63 +262,103 @@ public class PackageDownloader {
                 }
             });
         }
+        ranges.clear();
+        requests.clear();
+        long neededBytes = 0;
+        int fileCount = 0, rangeCount = 0;
         for(Entry<String, Package> e : packagefiles.entrySet()){
-            ArrayList<Range> rangeList = ranges.get(e.getKey());
-            if(rangeList == null){
-                rangeList = new ArrayList<>();
-                ranges.put(e.getKey(), rangeList);
-            }
-            for(PackageFile pf : e.getValue().packages){
+            ArrayList<Range> rangeList = new ArrayList<>();
+            ranges.put(e.getKey(), rangeList);
+            ArrayList<PackageFile> packages = e.getValue().packages;
+            for(int i = 0; i < packages.size(); i++){
+                PackageFile pf = packages.get(i);
+                neededBytes += pf.length;
                 Range lastrange = rangeList.isEmpty() ? null : rangeList.get(rangeList.size()-1);
-                if(lastrange == null || pf.offset > lastrange.max){
-                    lastrange = new Range(pf.offset, pf.offset + pf.length);
+                if(lastrange == null || pf.offset > lastrange.max && 
+                        (pf.offset - lastrange.max > requestCost || pf.offset + pf.length - lastrange.min > maxRangeSize)){
+                    lastrange = new Range(e.getValue(), i, pf.offset, pf.offset + pf.length);
                     rangeList.add(lastrange);
                 }else{
                     lastrange.max = Math.max(lastrange.max, pf.offset + pf.length);
                 }
             }
+            fileCount += packages.size();
+            rangeCount += rangeList.size();
+            
+            Request req = null;
+            for(Range r : rangeList){
+                if(req == null || req.ranges.size() >= maxRangesPerRequest || req.size + r.max - r.min > maxRangeSize){
+                    req = new Request(e.getValue());
+                    requests.add(req);
+                }
+                req.ranges.add(r);
+                req.size += r.max - r.min;
+            }
         }
         
-        
-        
         totalBytes = 0;
-        for(ArrayList<Range> rangeList : ranges.values()){
-            for(Range r : rangeList){
-                totalBytes += r.max - r.min;
-            }
+        for(Request req : requests){
+            totalBytes += req.size;
         }
+        Logger.getLogger(PackageDownloader.class.getName()).log(Level.FINE,
+                "Package plan: {0} files from {1} bins in {2} ranges and {3} requests, {4} bytes of which {5} in gaps",
+                new Object[]{fileCount, packagefiles.size(), rangeCount, requests.size(), totalBytes, totalBytes - neededBytes});
     }
 
-    public ArrayList<ManifestFile> downloadRanges(LoLPatcher p) throws FileNotFoundException, IOException {
-        lastSyncTime = System.currentTimeMillis();
-        long bytesRead = 0;
+    /**
+     * Downloads all ranges, over several connections at once. The largest requests
+     * are started first, so the connections finish at about the same time.
+     * @param p
+     * @return the files that were downloaded
+     * @throws FileNotFoundException
+     * @throws IOException 
+     */
+    public ArrayList<ManifestFile> downloadRanges(final LoLPatcher p) throws FileNotFoundException, IOException {
+        lastSyncTime.set(System.currentTimeMillis());
+        bytesRead.set(0);
+        failure = null;
+        
+        ArrayList<Request> all = new ArrayList<>(requests);
+        Collections.sort(all, new Comparator<Request>() {
+            @Override
+            public int compare(Request o1, Request o2) {
+                return -Long.compare(o1.size, o2.size);
+            }
+        });
+        final ConcurrentLinkedQueue<Request> queue = new ConcurrentLinkedQueue<>(all);
         
-        for(Entry<String, ArrayList<Range>> e : ranges.entrySet()){
-            ArrayList<Range> rangeList = e.getValue();
-            for (Range range : rangeList) {
-                MiniHttpClient.HttpResult get = hc.get("/releases/"+branch+"/projects/" + project + "/releases/"+target + "/packages/files/"+e.getKey(), range.min, range.max - 1);
-                byte[] bytes = new byte[1024];
-                int read;
-                long offset = range.min;
-                while((read = get.in.read(bytes)) != -1){
-                    pushBytes(read, offset, bytes, e.getKey(), p);
-                    LoLPatcher.speedStat(read);
-                    bytesRead += read;
-                    offset += read;
-                    if(offset > range.max){
-                        throw new IOException("More bytes received than expected.");
+        Thread[] threads = new Thread[Math.max(1, Math.min(connections, all.size()))];
+        for(int i = 0; i < threads.length; i++){
+            threads[i] = new Thread("Package downloader " + i){
+                @Override
+                public void run() {
+                    try(ConnectionPool.Connection con = connect()){
+                        Request req;
+                        while(failure == null && !p.done && (req = queue.poll()) != null){
+                            downloadRequest(req, con.client, p);
+                        }
+                    }catch(IOException e){
+                        if(failure == null){
+                            failure = e;
+                        }
                     }
-                    p.downloadPercentage = 100f * bytesRead / totalBytes;
-                    if(p.done) return new ArrayList<>();
-                }
-                get.in.close();
-                Package pack = packagefiles.get(e.getKey());
-                for(Package.OpenFile of : pack.openfiles){
-                    of.os.close();
                 }
-                pack.openfiles.clear();
+            };
+            threads[i].start();
+        }
+        for(Thread t : threads){
+            try {
+                t.join();
+            } catch (InterruptedException ex) {
+                throw new IOException("Interrupted while downloading packages", ex);
             }
         }
+        if(failure != null){
+            throw failure;
+        }
+        if(p.done){
+            return new ArrayList<>();
+        }
         p.syncAllArchives();
         ArrayList<ManifestFile> finished = new ArrayList<>();
         for(Package pack : packagefiles.values()){
@@ -253,6 +369,121 @@ public class PackageDownloader {
         return finished;
     }
     
+    private void downloadRequest(Request req, MiniHttpClient hc, LoLPatcher p) throws IOException{
+        String url = "/releases/"+branch+"/projects/" + project + "/releases/"+target + "/packages/files/"+req.pack.name;
+        if(req.ranges.size() > 1 && maxRangesPerRequest > 1){
+            if(!downloadParts(url, req, hc, p)){
+                maxRangesPerRequest = 1;
+            }
+            if(p.done || failure != null) return;
+        }
+        // anything the multi-range request did not deliver
+        for(Range range : req.ranges){
+            if(range.position < range.max){
+                MiniHttpClient.HttpResult get = hc.get(url, range.position, range.max - 1);
+                readRange(range, get.in, range.max - range.position, p);
+                if(p.done || failure != null) return;
+                if(range.position < range.max){
+                    throw new IOException("Response for " + url + " ended at " + range.position + " instead of " + range.max);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Asks for all ranges of req in one request. The server may send the parts
+     * in any order, may merge them, or may send the whole file.
+     * @return false if the server does not handle multi-range requests. The
+     * ranges it did not deliver are left for separate requests.
+     */
+    private boolean downloadParts(String url, Request req, MiniHttpClient hc, LoLPatcher p) throws IOException{
+        long[] spans = new long[req.ranges.size() * 2];
+        for(int i = 0; i < req.ranges.size(); i++){
+            spans[i * 2] = req.ranges.get(i).position;
+            spans[i * 2 + 1] = req.ranges.get(i).max - 1;
+        }
+        MiniHttpClient.HttpResult res;
+        hc.throwExceptionWhenNot200 = false; // a 200 with the whole file is fine too
+        try{
+            res = hc.get(url, spans);
+        }finally{
+            hc.throwExceptionWhenNot200 = true;
+        }
+        ByteRanges parts = null;
+        while(true){
+            try{
+                if(parts == null){
+                    if(res.code != 200 && res.code != 206){
+                        throw new IOException(res.headers.get(0));
+                    }
+                    parts = new ByteRanges(res);
+                }
+                if(!parts.next()){
+                    break;
+                }
+            }catch(IOException e){ // only the multipart structure, errors while reading the data are thrown
+                Logger.getLogger(PackageDownloader.class.getName()).log(Level.WARNING,
+                        "Multi-range request failed, using a request per range from now on", e);
+                return false;
+            }
+            long offset = parts.getStart();
+            for(Range range : req.ranges){
+                if(range.position >= range.max || range.max <= offset){
+                    continue;
+                }
+                if(range.position >= parts.getEnd() || offset > range.position){
+                    break; // not in this part. If it is not in another one either it is requested separately
+                }
+                skip(parts.in, range.position - offset);
+                offset = range.position;
+                long n = Math.min(range.max, parts.getEnd()) - offset;
+                readRange(range, parts.in, n, p);
+                if(p.done || failure != null) return true;
+                offset += n;
+            }
+        }
+        return true;
+    }
+    
+    private static void skip(InputStream in, long n) throws IOException{
+        while(n > 0){
+            long skipped = in.skip(n);
+            if(skipped <= 0){
+                if(in.read() == -1){
+                    throw new IOException("Unexpected end of stream");
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+    
+    /**
+     * Reads at most limit bytes of range, starting at range.position.
+     */
+    private void readRange(Range range, InputStream in, long limit, LoLPatcher p) throws IOException{
+        byte[] bytes = BufferPool.IO.take();
+        try{
+            int read;
+            while(limit > 0 && (read = in.read(bytes, 0, (int) Math.min(bytes.length, limit))) != -1){
+                pushBytes(read, range.position, bytes, range, p);
+                LoLPatcher.speedStat(read);
+                range.position += read;
+                limit -= read;
+                p.downloadPercentage = 100f * bytesRead.addAndGet(read) / totalBytes;
+                if(p.done || failure != null) return;
+            }
+        }finally{
+            BufferPool.IO.give(bytes);
+        }
+        if(range.position == range.max){
+            for(OpenFile of : range.openfiles){
+                of.close(p);
+            }
+            range.openfiles.clear();
+        }
+    }
+    
     /**
      * Push the given bytes to all consumers. Such as archives or normal files. (Sends
      * a slice of the given bytes to the appropriate outputstream(s))
@@ -269,26 +500,23 @@ public class PackageDownloader {
      * @param read  amount of bytes read
      * @param offset  offset in the bin file
      * @param buf  the byte buffer
-     * @param binName  the name of the bin file
+     * @param range  the range of the bin file that is being downloaded
      * @param p  a reference to the patcher object.
      * @throws IOException 
      */
-    private void pushBytes(int read, long offset, byte[] buf, String binName, LoLPatcher p) throws IOException{
-        Package pack = packagefiles.get(binName);
+    private void pushBytes(int read, long offset, byte[] buf, Range range, LoLPatcher p) throws IOException{
+        ArrayList<PackageFile> packages = range.pack.packages;
         
         long os;
-        while(pack.index < pack.packages.size() && (os = pack.next().offset) < offset + read && os >= offset){
-            if(pack.next().offset > offset + read){
-                System.err.println("WTF omg omg omg");
-            }
-            pack.openFile(pack.next(), p);
-            pack.index++;
+        while(range.index < packages.size() && (os = packages.get(range.index).offset) < offset + read && os >= offset){
+            range.openfiles.add(new OpenFile(packages.get(range.index), p));
+            range.index++;
         }
         
-        for(int i = 0; i < pack.openfiles.size(); i++){
-            Package.OpenFile of = pack.openfiles.get(i);
+        for(int i = 0; i < range.openfiles.size(); i++){
+            OpenFile of = range.openfiles.get(i);
             if(i == 0){
-                p.currentFile = of.pf.mf.name;
+                p.currentFile = of.pf.mf.getName();
             }
             int o = Math.max(0, (int) (of.pf.offset - offset));
             int remaining = Math.max(0, (int) ((of.pf.offset + of.pf.length) - offset));
@@ -297,17 +525,18 @@ public class PackageDownloader {
             try{
                 of.os.write(buf, o, l);
             }catch(IOException e){
-                System.err.println("o="+o + " l="+l + " bufl=" +buf.length + " offset=" +offset + " foffset="+of.pf.offset + " flen=" + of.pf.length + " ofl=" + pack.openfiles.size() + " read=" + read );
+                System.err.println("o="+o + " l="+l + " bufl=" +buf.length + " offset=" +offset + " foffset="+of.pf.offset + " flen=" + of.pf.length + " ofl=" + range.openfiles.size() + " read=" + read );
                 throw e;
             }
             if(remaining + o <= read){
-                of.os.close();
-                pack.openfiles.remove(i--);
+                of.close(p);
+                range.openfiles.remove(i--);
             }
         }
-        if(System.currentTimeMillis() - lastSyncTime > 5000){
+        long last = lastSyncTime.get();
+        long now = System.currentTimeMillis();
+        if(now - last > 5000 && lastSyncTime.compareAndSet(last, now)){ // only one thread syncs
             p.syncAllArchives();
-            lastSyncTime = System.currentTimeMillis();
         }
     }
 }
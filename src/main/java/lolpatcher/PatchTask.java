@@ -3,7 +3,7 @@ package lolpatcher;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.security.NoSuchAlgorithmException;
-import static lolpatcher.LoLPatcher.bytesThisSample;
+import nl.xupwup.Util.Throughput;
 
 /**
  *
@@ -11,23 +11,34 @@ import static lolpatcher.LoLPatcher.bytesThisSample;
  */
 public abstract class PatchTask extends Thread{
     public boolean done = false;
-    public static int speed = 0;
     public String currentFile;
     public Exception error;
     
-    static long lastSample = 0;
-    static int bytesThisSample = 0;
+    /**
+     * Bytes per phase, shared by all tasks.
+     */
+    public static final Throughput download = new Throughput("download"),
+            hash = new Throughput("hash"),
+            inflate = new Throughput("inflate"),
+            diskWrite = new Throughput("disk write");
     
     public abstract void patch() throws MalformedURLException, IOException, NoSuchAlgorithmException;
     
-    public static synchronized void speedStat(int read){
-        long now = System.currentTimeMillis();
-        bytesThisSample += read;
-        if(now - lastSample > 1000){
-            speed = (int) ((bytesThisSample / ((now - lastSample) / 1000f)) / 1024);
-            bytesThisSample = 0;
-            lastSample = now;
-        }
+    /**
+     * Counts downloaded bytes.
+     * @param read 
+     */
+    public static void speedStat(int read){
+        download.add(read);
+    }
+    
+    /**
+     * @return the download speed in KiB/s, or the disk write speed for tasks
+     * that do not download
+     */
+    public static int getSpeed(){
+        int speed = download.getSpeed();
+        return speed == 0 ? diskWrite.getSpeed() : speed;
     }
     
     public abstract float getPercentage();
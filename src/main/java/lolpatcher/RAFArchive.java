@@ -7,17 +7,24 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import static lolpatcher.StreamUtils.*;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 import lolpatcher.manifest.ManifestFile;
-import nl.xupwup.Util.FileSliceInputStream;
+import nl.xupwup.Util.BufferPool;
+import nl.xupwup.Util.ChannelSliceInputStream;
 
 /**
  *
@@ -26,19 +33,32 @@ import nl.xupwup.Util.FileSliceInputStream;
 public class RAFArchive implements AutoCloseable{
     File raf;
     File datRaf;
-    final RandomAccessFile out;
-    boolean changed = false;
+    final FileChannel out;
+    /** the end of the space handed out to writers, see writeFile */
+    private final AtomicLong datLength;
+    volatile boolean changed = false;
     boolean closed = false;
-    ArrayList<RafFile> fileList;
-    HashMap<String, RafFile> dictionary;
+    private final RafIndex entries;
+    private volatile boolean named;
+    private ByteBuffer index; // the .raf, until all names are read
+    private int pathListOffset;
+    private int[] pathlistindices;
+    private volatile FileChannel reader;
+    /** entries (finished or removed) that are not in the journal yet */
+    private final Queue<Integer> unjournaled = new ConcurrentLinkedQueue<>();
+    private final File journal;
+    private FileChannel journalOut;
     
     public RAFArchive(String path) throws IOException{
         raf = new File(path);
         datRaf = new File(path + ".dat");
         datRaf.createNewFile();
-        fileList = new ArrayList<>();
-        out = new RandomAccessFile(datRaf, "rw");
-        dictionary = new HashMap<>();
+        entries = new RafIndex(1024);
+        named = true;
+        out = FileChannel.open(datRaf.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        datLength = new AtomicLong(out.size());
+        journal = new File(path + ".journal");
+        replayJournal();
     }
     
     /**
@@ -48,82 +68,167 @@ public class RAFArchive implements AutoCloseable{
      * @throws java.io.IOException
      */
     public boolean isCompressed(RafFile f) throws IOException{
-        try (RandomAccessFile in = new RandomAccessFile(datRaf, "r")) {
-            in.seek(f.startindex);
-            return in.readByte() == 0x78 && in.readByte() == 0xffffff9c;
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(RAFArchive.class.getName()).log(Level.SEVERE, null, ex);
+        ByteBuffer header = ByteBuffer.allocate(2);
+        while(header.hasRemaining()){
+            if(reader().read(header, f.startindex + header.position()) == -1){
+                return false;
+            }
         }
-        return false;
+        return header.get(0) == 0x78 && header.get(1) == (byte) 0x9c;
     }
     
     public RAFArchive(File raf, File datRaf) throws FileNotFoundException, IOException{
         this.raf = raf;
         this.datRaf = datRaf;
-        fileList = new ArrayList<>();
-        try (RandomAccessFile in = new RandomAccessFile(raf, "r")) {
-            int magicNumber = getInt(in);
-            assert(magicNumber == 0x18be0ef0);
-            int version = getInt(in);
-            //System.out.println("Raf version: " + version);
-            int managerIndex = getInt(in);
-            //System.out.println("ManagerIndex: " + managerIndex);
-            
-            int fileListOffset = getInt(in);
-            int pathListOffset = getInt(in);
-            int nfiles = getInt(in);
-            for(int i = 0; i < nfiles; i++){
-                int pathHash = getInt(in);
-                long offset = getInt(in) & 0x00000000ffffffffL;
-                int size = getInt(in);
-                int pathlistindex = getInt(in);
-                
-                RafFile rf = new RafFile(offset, "");
-                rf.pathhash = pathHash;
-                rf.size = size;
-                rf.pathlistindex = pathlistindex;
-                
-                fileList.add(rf);
+        index = StreamUtils.readFully(raf); // not mapped, writeIndex replaces the file
+        if(index.capacity() < 20){
+            throw new IOException("Invalid raf file " + raf.getPath());
+        }
+        index.order(ByteOrder.LITTLE_ENDIAN);
+        int magicNumber = index.getInt(0);
+        assert(magicNumber == 0x18be0ef0);
+        //int version = index.getInt(4);
+        //int managerIndex = index.getInt(8);
+        int fileListOffset = index.getInt(12);
+        pathListOffset = index.getInt(16);
+        
+        int nfiles = index.getInt(fileListOffset);
+        entries = new RafIndex(nfiles + nfiles / 4);
+        pathlistindices = new int[nfiles];
+        int pos = fileListOffset + 4;
+        for(int i = 0; i < nfiles; i++, pos += 16){
+            entries.addUnnamed(index.getInt(pos), index.getInt(pos + 4) & 0x00000000ffffffffL, index.getInt(pos + 8));
+            pathlistindices[i] = index.getInt(pos + 12);
+        }
+        out = FileChannel.open(datRaf.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        datLength = new AtomicLong(out.size());
+        journal = new File(raf.getPath() + ".journal");
+        replayJournal();
+    }
+    
+    /**
+     * Reads the names of all entries from the path list and puts them in 
+     * the lookup table. This is postponed until somebody actually needs a name, so
+     * opening an archive only costs a pass over the (fixed size) file list.
+     */
+    private RafIndex entries(){
+        if(!named){
+            loadNames();
+        }
+        return entries;
+    }
+    
+    private synchronized void loadNames(){
+        if(named){
+            return;
+        }
+        byte[] buf = new byte[256];
+        for(int e = 0; e < pathlistindices.length; e++){
+            int entry = pathListOffset + 8 + pathlistindices[e] * 8;
+            int stringOffset = index.getInt(entry);
+            int stringLength = index.getInt(entry + 4) - 1; // -1 to clip \0
+            if(buf.length < stringLength){
+                buf = new byte[stringLength];
             }
-            
-            long offset = in.getFilePointer();
-            int pathListSize = getInt(in);
-            int pathListCount = getInt(in);
-            for(int i = 0; i < fileList.size(); i++){
-                RafFile rf = fileList.get(i);
-                in.seek(offset + 8 + rf.pathlistindex * 8);
-                int stringOffset = getInt(in);
-                int stringLength = getInt(in);
-                
-                in.seek(stringOffset + offset);
-                rf.name = new String(getBytes(in, stringLength-1)); // -1 to clip \0
+            index.position(pathListOffset + stringOffset);
+            index.get(buf, 0, stringLength);
+            entries.setName(e, new String(buf, 0, stringLength));
+        }
+        entries.rebuildTable();
+        index = null; // all names are decoded
+        pathlistindices = null;
+        named = true;
+    }
+    
+    /**
+     * @param path
+     * @return the entry with the given path, or null if this archive does not contain it
+     */
+    public RafFile getFile(String path){
+        int e = entries().find("", path);
+        return e == -1 ? null : new RafFile(e);
+    }
+    
+    /**
+     * Checks whether this archive has an entry for path + name. Unlike getFile
+     * this does not allocate anything, not even the concatenated path.
+     * @param path
+     * @param name
+     * @return 
+     */
+    public boolean contains(String path, String name){
+        return entries().find(path, name) != -1;
+    }
+    
+    /**
+     * Removes the entry with the given path. The data stays in the .raf.dat 
+     * until the archive is purged.
+     * @param path 
+     */
+    public void removeFile(String path){
+        RafIndex idx = entries();
+        int e = idx.find("", path);
+        if(e != -1){
+            idx.remove(e);
+            unjournaled.add(e); // journaled as a removal
+            changed = true;
+        }
+    }
+    
+    /**
+     * @return the number of completely written entries
+     */
+    public int getFileCount(){
+        RafIndex idx = entries;
+        int n = 0;
+        for(int e = 0, count = idx.count(); e < count; e++){
+            if(!idx.isRemoved(e) && idx.size(e) != -1){
+                n++;
             }
         }
-        dictionary = new HashMap<>();
-        long maxindex = 0;
-        for(RafFile f : fileList){
-            dictionary.put(f.name, f);
-            maxindex = Math.max(maxindex, f.startindex + f.size);
+        return n;
+    }
+    
+    /**
+     * @return the sum of the sizes of all completely written entries
+     */
+    public long getDataSize(){
+        RafIndex idx = entries;
+        long sum = 0;
+        for(int e = 0, count = idx.count(); e < count; e++){
+            int size = idx.size(e);
+            if(!idx.isRemoved(e) && size != -1){
+                sum += size;
+            }
         }
-        out = new RandomAccessFile(datRaf, "rw");
+        return sum;
     }
     
+    /**
+     * A snapshot of one entry. The index itself does not keep an object per entry.
+     */
     public class RafFile{
-        long startindex; // fits in unsigned int, but not in normal int
-        int size = -1;
-        String name;
-        int pathhash;
-        int pathlistindex;
+        final int entry;
+        final long startindex; // fits in unsigned int, but not in normal int
+        final int size;
+        
+        RafFile(int entry){
+            this.entry = entry;
+            startindex = entries.offset(entry);
+            size = entries.size(entry);
+        }
+        
+        public String getName(){
+            return entries.name(entry);
+        }
         
-        RafFile(long startIndex, String name){
-            pathhash = hash(name);
-            this.name = name;
-            this.startindex = startIndex;
+        public int getSize(){
+            return size;
         }
 
         @Override
         public String toString() {
-            return name + " (size: " + size + " startindex: "+startindex + " pathlistindex: "+pathlistindex+")";
+            return getName() + " (size: " + size + " startindex: "+startindex + ")";
         }
     }
     
@@ -160,22 +265,168 @@ public class RAFArchive implements AutoCloseable{
     }
     
     /**
-     * Writes the .raf file itself
+     * Writes the .raf file itself, folding in everything that was journaled.
      * @throws java.io.IOException
      */
     @Override
-    public void close() throws IOException{
-        out.close();
+    public synchronized void close() throws IOException{
         sync();
+        out.close();
+        if(reader != null){
+            reader.close();
+        }
+        if(changed){
+            writeIndex();
+            changed = false;
+        }
+        if(journalOut != null){
+            journalOut.close();
+        }
+        journal.delete();
         closed = true;
     }
     
-    public void sync() throws IOException{
-        if(!changed){
+    /**
+     * Makes all entries that were finished so far survive a crash. The data 
+     * is flushed to disk before the entries are appended to the journal, so the 
+     * journal never points at data that is not there. This does not rewrite 
+     * the .raf, that only happens in close().
+     * @throws IOException 
+     */
+    public synchronized void sync() throws IOException{
+        if(unjournaled.isEmpty()){
+            return;
+        }
+        out.force(false);
+        if(journalOut == null){
+            journalOut = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE, 
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32 crc = new CRC32();
+        Integer e;
+        while((e = unjournaled.poll()) != null){
+            byte[] name = entries.name(e).getBytes();
+            if(buf.remaining() < 20 + name.length){
+                flushJournal(buf);
+                if(buf.capacity() < 20 + name.length){
+                    buf = ByteBuffer.allocate(20 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+            int start = buf.position();
+            buf.putInt(name.length);
+            buf.putInt(entries.pathhash(e));
+            buf.putInt((int) entries.offset(e));
+            buf.putInt(entries.isRemoved(e) ? -1 : entries.size(e));
+            buf.put(name);
+            crc.reset();
+            crc.update(buf.array(), start, buf.position() - start);
+            buf.putInt((int) crc.getValue());
+        }
+        flushJournal(buf);
+        journalOut.force(false);
+    }
+    
+    private void flushJournal(ByteBuffer buf) throws IOException{
+        buf.flip();
+        while(buf.hasRemaining()){
+            journalOut.write(buf);
+        }
+        buf.clear();
+    }
+    
+    /**
+     * Applies the entries in the journal that a previous session left behind, 
+     * if any. A record that was only partly written (because we crashed while
+     * writing it) ends the journal, the journal is cut off there.
+     * @throws IOException 
+     */
+    private void replayJournal() throws IOException{
+        if(!journal.exists()){
             return;
         }
-        raf.createNewFile();
-        try (OutputStream rafOut = new BufferedOutputStream(new FileOutputStream(raf))){
+        RafIndex idx = entries();
+        long valid = 0;
+        try (FileChannel ch = FileChannel.open(journal.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer data = StreamUtils.readFully(ch).order(ByteOrder.LITTLE_ENDIAN); // not mapped, it is truncated below
+            CRC32 crc = new CRC32();
+            byte[] name = new byte[256];
+            while(data.remaining() >= 20){
+                int start = data.position();
+                int nameLength = data.getInt();
+                if(nameLength < 0 || data.remaining() < 16 + nameLength){
+                    break;
+                }
+                int pathhash = data.getInt();
+                long startindex = data.getInt() & 0x00000000ffffffffL;
+                int size = data.getInt();
+                if(name.length < nameLength){
+                    name = new byte[nameLength];
+                }
+                data.get(name, 0, nameLength);
+                ByteBuffer record = data.duplicate();
+                record.limit(data.position()).position(start);
+                crc.reset();
+                crc.update(record);
+                if(data.getInt() != (int) crc.getValue()){
+                    break;
+                }
+                String path = new String(name, 0, nameLength);
+                if(size == -1){
+                    int e = idx.find("", path);
+                    if(e != -1){
+                        idx.remove(e);
+                    }
+                }else{
+                    idx.add(path, pathhash, startindex, size);
+                }
+                valid = data.position();
+            }
+            if(valid < ch.size()){
+                ch.truncate(valid);
+            }
+        }
+        if(valid > 0){
+            changed = true;
+        }
+    }
+    
+    /**
+     * Writes the complete index to the .raf. A temporary file is written first, 
+     * so a crash halfway through leaves the old .raf (and the journal) intact.
+     * @throws IOException 
+     */
+    private void writeIndex() throws IOException{
+        final RafIndex idx = entries();
+        ArrayList<Integer> finishedFiles = new ArrayList<>(idx.count());
+        for(int e = 0, count = idx.count(); e < count; e++){
+            if(!idx.isRemoved(e) && idx.size(e) != -1){
+                finishedFiles.add(e);
+            }
+        }
+        Collections.sort(finishedFiles, new Comparator<Integer>(){
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                long o1hash = idx.pathhash(o1) & 0xffffffff;
+                long o2hash = idx.pathhash(o2) & 0xffffffff;
+                if(o1hash > o2hash){
+                    return 1;
+                }else if (o1hash < o2hash){
+                    return -1;
+                }else{
+                    return idx.name(o1).compareToIgnoreCase(idx.name(o2));
+                }
+            }
+        });
+        byte[][] names = new byte[finishedFiles.size()][];
+        int stringSum = 0;
+        for(int i = 0; i < names.length; i++){
+            names[i] = idx.name(finishedFiles.get(i)).getBytes();
+            stringSum += names[i].length + 1; // include nul byte
+        }
+        
+        File tmp = new File(raf.getPath() + ".tmp");
+        try (OutputStream rafOut = new BufferedOutputStream(new FileOutputStream(tmp))){
             rafOut.write(getIntBytes(0x18be0ef0)); // magic number
             rafOut.write(getIntBytes(1)); // raf version
 
@@ -183,60 +434,34 @@ public class RAFArchive implements AutoCloseable{
 
             rafOut.write(getIntBytes(20)); // File list offset
             
-            ArrayList<RafFile> finishedFiles = new ArrayList<>(fileList.size());
-            for(RafFile fi : fileList){
-                if(fi.size != -1){
-                    finishedFiles.add(fi);
-                }
-            }
             rafOut.write(getIntBytes(20 + 4 + finishedFiles.size() * 16)); // Path list offset
 
             rafOut.write(getIntBytes(finishedFiles.size())); // count of file entries
 
-            Collections.sort(finishedFiles, new Comparator<RafFile>(){
-                @Override
-                public int compare(RafFile o1, RafFile o2) {
-                    long o1hash = o1.pathhash & 0xffffffff;
-                    long o2hash = o2.pathhash & 0xffffffff;
-                    if(o1hash > o2hash){
-                        return 1;
-                    }else if (o1hash < o2hash){
-                        return -1;
-                    }else{
-                        return o1.name.compareToIgnoreCase(o2.name);
-                    }
-                }
-            });
             int pathlistindex = 0;
-            for(RafFile f : finishedFiles){
-                rafOut.write(getIntBytes(f.pathhash)); // path hash
-                rafOut.write(getIntBytes(f.startindex)); // start index
-                rafOut.write(getIntBytes(f.size)); // size
+            for(int e : finishedFiles){
+                rafOut.write(getIntBytes(idx.pathhash(e))); // path hash
+                rafOut.write(getIntBytes(idx.offset(e))); // start index
+                rafOut.write(getIntBytes(idx.size(e))); // size
                 rafOut.write(getIntBytes(pathlistindex++)); // path list index
             }
 
-            int stringSum = 0;
-            for(RafFile f : finishedFiles){
-                stringSum += f.name.getBytes().length + 1; // include nul byte
-            }
             rafOut.write(getIntBytes(stringSum)); // path list size
             rafOut.write(getIntBytes(finishedFiles.size())); // path list count
 
             int pathOffset = 8 + finishedFiles.size() * 8;
-            for(RafFile f : finishedFiles){
+            for(byte[] name : names){
                 rafOut.write(getIntBytes(pathOffset)); // path offset
-                int l = f.name.getBytes().length + 1;
+                int l = name.length + 1;
                 pathOffset += l;
                 rafOut.write(getIntBytes(l)); // path length
             }
-            for(RafFile f : finishedFiles){
-                rafOut.write(f.name.getBytes());
+            for(byte[] name : names){
+                rafOut.write(name);
                 rafOut.write(0x00);
             }
-            changed = false;
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(RAFArchive.class.getName()).log(Level.SEVERE, null, ex);
         }
+        Files.move(tmp.toPath(), raf.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
     
     
@@ -250,7 +475,15 @@ public class RAFArchive implements AutoCloseable{
      * @author ArcadeStorm
      */
     public static int hash(String filePath) {
-        long hash = 0;
+        return hash(0, filePath);
+    }
+    
+    /**
+     * Continues hashing where a previous call left off, so 
+     * hash(hash(0, a), b) == hash(a + b).
+     */
+    static int hash(int seed, String filePath) {
+        long hash = seed;
         long temp;
         for (int i = 0; i < filePath.length(); i++) {
             hash = ((hash << 4) + Character.toLowerCase(filePath.charAt(i))) & 0xffffffff;
@@ -264,9 +497,13 @@ public class RAFArchive implements AutoCloseable{
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
+        RafIndex idx = entries();
         try{
-            for(RafFile rf : fileList){
-                sb.append(rf.name.replace("\0","\\0")).append(" hash=").append(rf.pathhash).append(" -- ").append(isCompressed(rf)).append("\n");
+            for(int e = 0, count = idx.count(); e < count; e++){
+                if(idx.isRemoved(e)){
+                    continue;
+                }
+                sb.append(idx.name(e).replace("\0","\\0")).append(" hash=").append(idx.pathhash(e)).append(" -- ").append(isCompressed(new RafFile(e))).append("\n");
             }
         }catch(IOException e){
             e.printStackTrace();
@@ -274,12 +511,29 @@ public class RAFArchive implements AutoCloseable{
         return sb.toString();
     }
     
+    /**
+     * The channel all reads from the .raf.dat go through. Positional reads do not
+     * touch the channel position, so one descriptor serves every reader.
+     */
+    private FileChannel reader() throws IOException{
+        FileChannel r = reader;
+        if(r == null){
+            synchronized(this){
+                if(reader == null){
+                    reader = FileChannel.open(datRaf.toPath(), StandardOpenOption.READ);
+                }
+                r = reader;
+            }
+        }
+        return r;
+    }
+    
     public InputStream readFile(RafFile selectedFile) throws IOException{
-        return new FileSliceInputStream(datRaf, selectedFile.startindex, selectedFile.size);
+        return new ChannelSliceInputStream(reader(), selectedFile.startindex, selectedFile.size);
     }
     
     public InputStream readFile(String path) throws IOException{
-        RafFile selectedFile = dictionary.get(path);
+        RafFile selectedFile = getFile(path);
         if(selectedFile == null){
             throw new FileNotFoundException("\"" + path +"\" was not found in archive " + raf.getPath());
         }
@@ -295,31 +549,306 @@ public class RAFArchive implements AutoCloseable{
      * @throws IOException 
      */
     public OutputStream writeFile(String path, ManifestFile mf) throws IOException{
-        RafFile rf = new RafFile(out.length(), path);
-        rf.pathlistindex = 0; // this is not used in sync, so it does not need to be correct here
-        dictionary.put(rf.name, rf);
-        fileList.add(rf);
-        synchronized(out){
-            out.setLength(out.length() + (mf.fileType == 6 ? mf.sizeUncompressed : mf.sizeCompressed));
+        // Space is handed out by bumping the end pointer, so concurrent writers
+        // never wait for each other. The file grows as the data is written.
+        long size = mf.getFileType() == 6 ? mf.getSizeUncompressed() : mf.getSizeCompressed();
+        long start = datLength.getAndAdd(size);
+        int e = entries().add(path, hash(path), start, -1);
+        return new BufferedOutputStream(new RafFileOutputStream(mf, e, start, 0, out));
+    }
+    
+    /**
+     * Like writeFile, but for downloads that may have to be resumed later. The
+     * returned stream is not buffered.
+     * @param path
+     * @param mf
+     * @param start  where an earlier session started writing this file, or -1 for a new one
+     * @param committed  the number of bytes an earlier session wrote
+     * @return
+     * @throws IOException  if the earlier data is not there
+     */
+    public RafFileOutputStream writeFile(String path, ManifestFile mf, long start, long committed) throws IOException{
+        long size = mf.getFileType() == 6 ? mf.getSizeUncompressed() : mf.getSizeCompressed();
+        if(start == -1){
+            start = datLength.getAndAdd(size);
+            committed = 0;
+        }else{
+            if(start < 0 || committed > size || start + committed > out.size()){
+                throw new IOException("Can not resume " + path + " at " + start + "+" + committed + ", the data is not there");
+            }
+            reserve(start + size);
+        }
+        int e = entries().add(path, hash(path), start, -1);
+        return new RafFileOutputStream(mf, e, start, (int) committed, out);
+    }
+    
+    /**
+     * Makes sure new files are not written before end. For data an earlier 
+     * session left behind, that is resumed with writeFile.
+     * @param end 
+     */
+    public void reserve(long end){
+        long l;
+        while((l = datLength.get()) < end && !datLength.compareAndSet(l, end)){}
+    }
+    
+    /**
+     * Copies an entry of another archive into this one. The data goes from
+     * file to file with transferTo, it does not pass through the heap.
+     * @param source
+     * @param f  an entry of source
+     * @throws IOException 
+     */
+    public void transferFile(RAFArchive source, RafFile f) throws IOException{
+        String path = f.getName();
+        long start = datLength.getAndAdd(f.size);
+        int e = entries().add(path, hash(path), start, -1);
+        FileChannel from = source.reader();
+        synchronized(out){ // transferTo writes at the position of out
+            out.position(start);
+            long done = 0;
+            while(done < f.size){
+                long n = from.transferTo(f.startindex + done, f.size - done, out);
+                if(n <= 0){
+                    throw new IOException("Stream ended.");
+                }
+                done += n;
+            }
+        }
+        PatchTask.diskWrite.add(f.size);
+        entries.setSize(e, f.size);
+        unjournaled.add(e);
+        changed = true;
+    }
+    
+    /**
+     * How much of a .raf.dat is wasted, see getFragmentation.
+     */
+    public static class Fragmentation{
+        /** the size of the .raf.dat */
+        public final long length;
+        /** bytes that belong to entries that are kept */
+        public final long liveBytes;
+        /** the bytes of kept entries that come after the first gap, so compacting moves them */
+        public final long movedBytes;
+        /** stretches of the .raf.dat that no kept entry uses */
+        public final int gaps;
+        /** entries that are not needed anymore, or were never finished */
+        public final int unreferenced;
+
+        Fragmentation(long length, long liveBytes, long movedBytes, int gaps, int unreferenced) {
+            this.length = length;
+            this.liveBytes = liveBytes;
+            this.movedBytes = movedBytes;
+            this.gaps = gaps;
+            this.unreferenced = unreferenced;
+        }
+        
+        /**
+         * @return what purging would free
+         */
+        public long getDeadBytes(){
+            return length - liveBytes;
+        }
+
+        @Override
+        public String toString() {
+            return (getDeadBytes() >> 10) + " KiB dead of " + (length >> 10) + " KiB, " 
+                    + gaps + " gaps, " + unreferenced + " unreferenced entries";
         }
-        return new BufferedOutputStream(new RafFileOutputStream(mf, rf, out));
     }
     
     /**
-     * Note that this class sets the size of the corresponding RafFile when it is
+     * Measures how fragmented the .raf.dat is. Only the index is read.
+     * @param keep  the paths of the entries that are still needed
+     * @return 
+     * @throws IOException 
+     */
+    public Fragmentation getFragmentation(Set<String> keep) throws IOException{
+        final RafIndex idx = entries();
+        ArrayList<Integer> live = new ArrayList<>();
+        int unreferenced = 0;
+        for(int e = 0, count = idx.count(); e < count; e++){
+            if(idx.isRemoved(e)){
+                continue;
+            }
+            if(idx.size(e) == -1 || !keep.contains(idx.name(e))){
+                unreferenced++;
+            }else{
+                live.add(e);
+            }
+        }
+        Collections.sort(live, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(idx.offset(o1), idx.offset(o2));
+            }
+        });
+        long end = 0, liveBytes = 0, movedBytes = 0;
+        int gaps = 0;
+        for(int e : live){
+            long start = idx.offset(e);
+            long entryEnd = start + idx.size(e);
+            if(start > end){
+                gaps++;
+            }
+            if(gaps > 0){
+                movedBytes += idx.size(e);
+            }
+            liveBytes += Math.max(0, entryEnd - Math.max(start, end)); // entries may share data
+            end = Math.max(end, entryEnd);
+        }
+        long length = out.size();
+        if(end < length){
+            gaps++;
+        }
+        return new Fragmentation(length, liveBytes, movedBytes, gaps, unreferenced);
+    }
+    
+    /**
+     * Removes every entry that is not in keep, and moves the others down so the
+     * .raf.dat has no gaps. The .raf.dat is cut off after the last entry.
+     * 
+     * A move is journaled before the place it came from is written to, so a
+     * crash leaves a valid archive. An entry that overlaps its own new place is
+     * journaled as removed while it moves. After a crash it is just missing, and
+     * a repair downloads it again.
+     * @param keep  the paths of the entries to keep
+     * @param task  this stops when the task is done. The archive is valid then,
+     * it just still has gaps.
+     * @return the number of bytes the .raf.dat shrunk, or -1 if entries share
+     * data, which can not be compacted like this. Nothing is changed in that case.
+     * @throws IOException 
+     */
+    public synchronized long compact(Set<String> keep, PatchTask task) throws IOException{
+        final RafIndex idx = entries();
+        ArrayList<Integer> live = new ArrayList<>();
+        for(int e = 0, count = idx.count(); e < count; e++){
+            if(!idx.isRemoved(e) && idx.size(e) != -1 && keep.contains(idx.name(e))){
+                live.add(e);
+            }
+        }
+        Collections.sort(live, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Long.compare(idx.offset(o1), idx.offset(o2));
+            }
+        });
+        for(int i = 1; i < live.size(); i++){
+            if(idx.offset(live.get(i)) < idx.offset(live.get(i - 1)) + idx.size(live.get(i - 1))){
+                return -1;
+            }
+        }
+        for(int e = 0, count = idx.count(); e < count; e++){
+            if(!idx.isRemoved(e) && (idx.size(e) == -1 || !keep.contains(idx.name(e)))){
+                idx.remove(e);
+                unjournaled.add(e); // journaled as a removal
+                changed = true;
+            }
+        }
+        sync(); // from here on the data of removed entries may be overwritten
+        
+        byte[] bytes = BufferPool.IO.take();
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        long end = 0;
+        long pending = Long.MAX_VALUE; // the lowest old offset of moved entries that are not journaled yet
+        try{
+            for(int e : live){
+                long from = idx.offset(e);
+                int size = idx.size(e);
+                if(from == end){
+                    end += size;
+                    continue;
+                }
+                if(task.done){
+                    sync();
+                    return 0;
+                }
+                boolean overlaps = from < end + size;
+                if(overlaps){
+                    idx.remove(e);
+                    unjournaled.add(e);
+                }
+                if(overlaps || end + size > pending){
+                    sync();
+                    pending = Long.MAX_VALUE;
+                }
+                for(int moved = 0; moved < size;){
+                    buf.clear();
+                    buf.limit(Math.min(bytes.length, size - moved));
+                    while(buf.hasRemaining()){
+                        if(out.read(buf, from + moved + buf.position()) == -1){
+                            throw new IOException("Unexpected end of " + datRaf.getPath());
+                        }
+                    }
+                    buf.flip();
+                    while(buf.hasRemaining()){
+                        out.write(buf, end + moved + buf.position());
+                    }
+                    moved += buf.limit();
+                }
+                PatchTask.diskWrite.add(size);
+                String name = idx.name(e);
+                unjournaled.add(idx.add(name, idx.pathhash(e), end, size));
+                changed = true;
+                pending = Math.min(pending, from);
+                end += size;
+            }
+            sync();
+            long shrunk = out.size() - end;
+            out.truncate(end);
+            datLength.set(end);
+            return shrunk;
+        }finally{
+            BufferPool.IO.give(bytes);
+        }
+    }
+    
+    /**
+     * Note that this class sets the size of the corresponding entry when it is
      * completely written. Therefore, you can check whether a file was entirely written
-     * by looking at its size field.
+     * by looking at its size.
      */
-    private class RafFileOutputStream extends OutputStream{
+    public class RafFileOutputStream extends OutputStream{
         private final ManifestFile mf;
-        private final RafFile rf;
-        private final RandomAccessFile file;
-        int count = 0;
+        private final int entry;
+        private final long startindex;
+        private final FileChannel file;
+        private final int maxSize;
+        private byte[] wrapped;
+        private ByteBuffer wrapper;
+        int count;
+        boolean closed = false;
         
-        public RafFileOutputStream(ManifestFile mf, RafFile rf, RandomAccessFile file){
+        RafFileOutputStream(ManifestFile mf, int entry, long startindex, int count, FileChannel file){
             this.file = file;
-            this.rf = rf;
+            this.entry = entry;
+            this.startindex = startindex;
+            this.count = count;
             this.mf = mf;
+            maxSize = mf.getFileType() == 6 ? mf.getSizeUncompressed() : mf.getSizeCompressed();
+        }
+        
+        /**
+         * @return where this file starts in the .raf.dat
+         */
+        public long getStart(){
+            return startindex;
+        }
+        
+        /**
+         * @return the number of bytes written
+         */
+        public int getCount(){
+            return count;
+        }
+        
+        /**
+         * Forces what was written so far to disk.
+         * @throws IOException 
+         */
+        public void force() throws IOException{
+            file.force(false);
         }
         
         @Override
@@ -334,20 +863,30 @@ public class RAFArchive implements AutoCloseable{
 
         @Override
         public void write(byte[] bytes, int off, int len) throws IOException {
-            synchronized(file){
-                file.seek(rf.startindex + count);
-                file.write(bytes, off, len);
-                count += len;
-            }
-            if(count > (mf.fileType == 6 ? mf.sizeUncompressed : mf.sizeCompressed)){
+            if(count + len > maxSize){
                 throw new IOException("Too many bytes written. File length should have been "
-                        + mf.sizeCompressed + " but " + count + " bytes written. Last chunk is l="+len + " == "+ new String(Arrays.copyOfRange(bytes, off, len)) + "\n" + mf);
+                        + maxSize + " but " + (count + len) + " bytes written. Last chunk is l="+len + " == "+ new String(Arrays.copyOfRange(bytes, off, off + len)) + "\n" + mf);
+            }
+            if(bytes != wrapped){
+                wrapped = bytes;
+                wrapper = ByteBuffer.wrap(bytes);
             }
+            wrapper.limit(off + len);
+            wrapper.position(off);
+            while(wrapper.hasRemaining()){
+                count += file.write(wrapper, startindex + count);
+            }
+            PatchTask.diskWrite.add(len);
         }
 
         @Override
         public void close() throws IOException {
-            rf.size = count;
+            if(closed){
+                return;
+            }
+            closed = true;
+            entries.setSize(entry, count);
+            unjournaled.add(entry);
             changed = true;
         }
     }
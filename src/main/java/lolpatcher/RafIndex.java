@@ -0,0 +1,287 @@
+package lolpatcher;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The entries of a RAF archive, kept in parallel primitive arrays instead of an
+ * object per entry, with an open addressing table on the path hash to find them.
+ *
+ * Entries are only ever appended. Removing an entry just flags it, so entry
+ * numbers stay valid for as long as the index lives. Lookups do not allocate
+ * and do not block unless a writer is busy at the same moment.
+ * @author Rick
+ */
+class RafIndex {
+    private static final byte REMOVED = 1;
+
+    private final StampedLock lock = new StampedLock();
+    private int[] pathhashes;
+    private int[] offsets; // unsigned
+    private int[] sizes;
+    private String[] names;
+    private byte[] flags;
+    private int count = 0;
+
+    private int[] table; // entry + 1, 0 is an empty slot
+    private int shift;
+    private int used = 0;
+
+    RafIndex(int capacity) {
+        capacity = Math.max(16, capacity);
+        pathhashes = new int[capacity];
+        offsets = new int[capacity];
+        sizes = new int[capacity];
+        names = new String[capacity];
+        flags = new byte[capacity];
+        allocateTable(capacity);
+    }
+
+    private void allocateTable(int capacity){
+        int slots = Integer.highestOneBit(Math.max(16, capacity) * 2 - 1) * 2;
+        table = new int[slots];
+        shift = 32 - Integer.numberOfTrailingZeros(slots);
+        used = 0;
+    }
+
+    private int slot(int hash){
+        return (hash * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * Adds an entry without a name to the index. This is used while reading a
+     * .raf, where the names are only read when they are needed. The entry can
+     * not be found until its name is set and the table is rebuilt.
+     */
+    int addUnnamed(int pathhash, long offset, int size){
+        long stamp = lock.writeLock();
+        try{
+            return append(pathhash, offset, size);
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void setName(int e, String name){
+        long stamp = lock.writeLock();
+        try{
+            names[e] = name;
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Puts all named entries in the lookup table.
+     */
+    void rebuildTable(){
+        long stamp = lock.writeLock();
+        try{
+            allocateTable(pathhashes.length);
+            for(int e = 0; e < count; e++){
+                if(names[e] != null && (flags[e] & REMOVED) == 0){
+                    insert(e);
+                }
+            }
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Adds an entry. An entry with the same name that was already in the index
+     * is removed.
+     * @return the new entry
+     */
+    int add(String name, int pathhash, long offset, int size){
+        long stamp = lock.writeLock();
+        try{
+            int old = probe("", name);
+            if(old != -1){
+                flags[old] |= REMOVED;
+            }
+            int e = append(pathhash, offset, size);
+            names[e] = name;
+            insert(e);
+            return e;
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private int append(int pathhash, long offset, int size){
+        if(count == pathhashes.length){
+            int capacity = count * 2;
+            pathhashes = Arrays.copyOf(pathhashes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            names = Arrays.copyOf(names, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+        }
+        int e = count++;
+        pathhashes[e] = pathhash;
+        offsets[e] = (int) offset;
+        sizes[e] = size;
+        return e;
+    }
+
+    private void insert(int e){
+        if((used + 1) * 2 > table.length){
+            allocateTable(table.length); // doubles
+            for(int i = 0; i < e; i++){
+                if(names[i] != null && (flags[i] & REMOVED) == 0){
+                    insert(i);
+                }
+            }
+        }
+        int mask = table.length - 1;
+        int s = slot(RAFArchive.hash(names[e]));
+        while(table[s] != 0){
+            s = (s + 1) & mask;
+        }
+        table[s] = e + 1;
+        used++;
+    }
+
+    /**
+     * Looks up the entry for path + name, without concatenating the two.
+     * @return the entry, or -1 if there is no such entry
+     */
+    int find(String path, String name){
+        long stamp = lock.tryOptimisticRead();
+        int e = probe(path, name);
+        if(!lock.validate(stamp)){
+            stamp = lock.readLock();
+            try{
+                e = probe(path, name);
+            }finally{
+                lock.unlockRead(stamp);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Note that this may run while a writer changes the arrays (optimistic read),
+     * so it must not fail on an inconsistent view. The result is thrown away
+     * in that case.
+     */
+    private int probe(String path, String name){
+        int[] t = table;
+        String[] n = names;
+        byte[] f = flags;
+        int mask = t.length - 1;
+        int length = path.length() + name.length();
+        int s = slot(RAFArchive.hash(RAFArchive.hash(0, path), name)) & mask;
+        for(int i = 0; i < t.length; i++){
+            int e = t[s] - 1;
+            if(e == -1){
+                return -1;
+            }
+            if(e < n.length && e < f.length && (f[e] & REMOVED) == 0){
+                String candidate = n[e];
+                if(candidate != null && candidate.length() == length
+                        && candidate.startsWith(path)
+                        && candidate.regionMatches(path.length(), name, 0, name.length())){
+                    return e;
+                }
+            }
+            s = (s + 1) & mask;
+        }
+        return -1;
+    }
+
+    void remove(int e){
+        long stamp = lock.writeLock();
+        try{
+            flags[e] |= REMOVED;
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void setSize(int e, int size){
+        long stamp = lock.writeLock();
+        try{
+            sizes[e] = size;
+        }finally{
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    boolean isRemoved(int e){
+        long stamp = lock.tryOptimisticRead();
+        byte[] column = flags; // might be stale, validate tells
+        byte f = e < column.length ? column[e] : 0;
+        if(!lock.validate(stamp)){
+            stamp = lock.readLock();
+            try{
+                f = flags[e];
+            }finally{
+                lock.unlockRead(stamp);
+            }
+        }
+        return (f & REMOVED) != 0;
+    }
+
+    int size(int e){
+        long stamp = lock.tryOptimisticRead();
+        int[] column = sizes; // might be stale, validate tells
+        int s = e < column.length ? column[e] : 0;
+        if(!lock.validate(stamp)){
+            stamp = lock.readLock();
+            try{
+                s = sizes[e];
+            }finally{
+                lock.unlockRead(stamp);
+            }
+        }
+        return s;
+    }
+
+    long offset(int e){
+        long stamp = lock.tryOptimisticRead();
+        int[] column = offsets; // might be stale, validate tells
+        int o = e < column.length ? column[e] : 0;
+        if(!lock.validate(stamp)){
+            stamp = lock.readLock();
+            try{
+                o = offsets[e];
+            }finally{
+                lock.unlockRead(stamp);
+            }
+        }
+        return o & 0x00000000ffffffffL;
+    }
+
+    int pathhash(int e){
+        long stamp = lock.readLock();
+        try{
+            return pathhashes[e];
+        }finally{
+            lock.unlockRead(stamp);
+        }
+    }
+
+    String name(int e){
+        long stamp = lock.readLock();
+        try{
+            return names[e];
+        }finally{
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return the number of entries, including removed ones. Entry numbers
+     * are 0 up to this.
+     */
+    int count(){
+        long stamp = lock.readLock();
+        try{
+            return count;
+        }finally{
+            lock.unlockRead(stamp);
+        }
+    }
+}
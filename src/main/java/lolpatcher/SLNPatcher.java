@@ -4,46 +4,170 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lolpatcher.manifest.ManifestFile;
+import lolpatcher.manifest.ReleaseManifest;
 
 /**
+ * Deploys the game client into the solution.
  *
+ * The game release manifest the solution was deployed from is kept next to
+ * it (gamemanifest). When the game is patched, the previous solution is moved
+ * to the new version and only the files whose checksum changed are copied
+ * again. Files that are no longer in the game are deleted. Without a previous
+ * manifest, or when forced, the whole deploy directory is copied.
  * @author Rick
  */
 public class SLNPatcher extends CopyTask{
     boolean force;
     String slnversion;
-    
-    public SLNPatcher(String gameversion, String slnversion, boolean force) {
-        super(new File("RADS/projects/lol_game_client/releases/"+gameversion+"/deploy/"), 
+    String gameversion;
+    String branch;
+
+    public SLNPatcher(String gameversion, String slnversion, String branch, boolean force) {
+        super(new File("RADS/projects/lol_game_client/releases/"+gameversion+"/deploy/"),
               new File("RADS/solutions/lol_game_client_sln/releases/"+slnversion+"/deploy/"), true);
         this.slnversion = slnversion;
+        this.gameversion = gameversion;
+        this.branch = branch;
         this.force = force;
     }
 
     @Override
     public void patch() throws MalformedURLException, IOException, NoSuchAlgorithmException {
         File solutionsDirectory = new File("RADS/solutions/lol_game_client_sln/releases/");
-        
+        File release = to.getParentFile();
+        File deployed = new File(release, "gamemanifest");
+
         String[] directories = solutionsDirectory.list(new FilenameFilter() {
             @Override
             public boolean accept(File dir, String name) {
                 return name.matches("([0-9]+\\.){3}[0-9]+");
             }
         });
-        if(directories.length > 1){
+        if(!deployed.exists() && !new File(release, "S_OK").exists() && directories != null){
+            String old = null;
+            for(String d : directories){
+                if(!d.equals(slnversion) && new File(solutionsDirectory, d + "/gamemanifest").exists()
+                        && (old == null || ReleaseManifest.getReleaseInt(d) > ReleaseManifest.getReleaseInt(old))){
+                    old = d;
+                }
+            }
+            if(old != null){
+                // start from the previous deploy, it only needs the changes. The
+                // manifests and config of the new version are already there.
+                File oldDir = new File(solutionsDirectory, old);
+                new File(oldDir, "S_OK").delete();
+                if(!release.exists() || moveInto(release, oldDir)){
+                    oldDir.renameTo(release);
+                }
+            }
+        }
+        if(directories != null && directories.length > 1){
             for(String d : directories){
                 if(!d.equals(slnversion)){
                     LoLPatcher.deleteDir(new File(solutionsDirectory, d));
                 }
             }
         }
-        if(to.exists() && new File(to.getParent(), "S_OK").exists() && !force){
+        if(to.exists() && new File(release, "S_OK").exists() && !force){
             percentage = 100;
             done = true;
             return;
         }
-        super.patch();
-        new File(to.getParent(), "S_OK").createNewFile();
+        new File(release, "S_OK").delete();
+
+        currentFile = "Reading manifest";
+        ReleaseManifest mf = ReleaseManifest.getReleaseManifest("lol_game_client", gameversion, branch, "projects");
+        ReleaseManifest oldmf = null;
+        if(deployed.exists() && !force){
+            try{
+                oldmf = new ReleaseManifest(deployed);
+            }catch(IOException e){
+                Logger.getLogger(SLNPatcher.class.getName()).log(Level.WARNING, "Could not read " + deployed, e);
+            }
+        }
+        if(oldmf == null){
+            super.patch();
+        }else{
+            deployChanges(oldmf, mf);
+        }
+        if(done && percentage < 100){
+            return; // cancelled
+        }
+        Files.copy(new File(from.getParentFile(), "releasemanifest").toPath(), deployed.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        new File(release, "gamemanifest.idx").delete(); // belongs to the old one
+        new File(release, "S_OK").createNewFile();
+    }
+
+    /**
+     * Copies the files that changed since oldmf was deployed, and deletes the
+     * ones that were removed.
+     */
+    private void deployChanges(ReleaseManifest oldmf, ReleaseManifest mf) throws IOException{
+        currentFile = "Calculating differences";
+        ArrayList<String> changed = new ArrayList<>();
+        for(ManifestFile f : mf.files){
+            if(!isDeployed(f)){
+                continue;
+            }
+            String path = f.getPath() + f.getName();
+            ManifestFile old = oldmf.getFile(path);
+            if(old == null || !isDeployed(old) || !old.checksumEquals(f) || !new File(to, path).exists()){
+                changed.add(path);
+            }
+        }
+        for(ManifestFile f : oldmf.files){
+            String path = f.getPath() + f.getName();
+            if(isDeployed(f) && mf.getFile(path) == null){
+                Files.deleteIfExists(new File(to, path).toPath());
+            }
+        }
+        Logger.getLogger(SLNPatcher.class.getName()).log(Level.INFO, "{0} changed files", changed.size());
+
+        percentage = 0;
+        copier().copy(from, to, changed);
+        if(!done){
+            percentage = 100;
+            done = true;
+        }
+    }
+
+    /**
+     * Moves the files in src to the same place in dst, replacing what is there,
+     * and deletes src.
+     * @return false if something could not be moved
+     */
+    private static boolean moveInto(File src, File dst) throws IOException{
+        File[] files = src.listFiles();
+        if(files == null){
+            return false;
+        }
+        dst.mkdirs();
+        boolean ok = true;
+        for(File f : files){
+            File target = new File(dst, f.getName());
+            if(f.isDirectory()){
+                ok &= moveInto(f, target);
+            }else{
+                Files.move(f.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        return src.delete() && ok;
+    }
+
+    /**
+     * @return true if the file is in the deploy directory of the project,
+     * as opposed to an archive or the managed files
+     */
+    private static boolean isDeployed(ManifestFile f){
+        int t = f.getFileType();
+        return t != 5 && t != 6 && t != 22;
     }
 }
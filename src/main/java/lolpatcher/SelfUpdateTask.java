@@ -12,6 +12,7 @@ import java.net.MalformedURLException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import static lolpatcher.Main.patcherVersion;
+import nl.xupwup.Util.ConnectionPool;
 import nl.xupwup.Util.MiniHttpClient;
 
 /**
@@ -25,7 +26,8 @@ public class SelfUpdateTask extends PatchTask{
     public void patch() throws MalformedURLException, IOException, NoSuchAlgorithmException {
         currentFile = "Checking for updates";
         ArrayList<String> response;
-        try (MiniHttpClient hc = new MiniHttpClient("lolpatcher.xupwup.nl")) {
+        try (ConnectionPool.Connection con = ConnectionPool.getShared().acquire("lolpatcher.xupwup.nl")) {
+            MiniHttpClient hc = con.client;
             MiniHttpClient.HttpResult versionRequest = hc.get("/version2");
             response = new ArrayList<>();
             try (BufferedReader in = new BufferedReader(new InputStreamReader(versionRequest.in))) {
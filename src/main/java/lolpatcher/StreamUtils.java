@@ -1,8 +1,19 @@
 package lolpatcher;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import nl.xupwup.Util.BufferPool;
 
 /**
  *
@@ -40,6 +51,86 @@ public class StreamUtils {
         return ret;
     }
     
+    /**
+     * Writes props to file through a temporary file that replaces it in one go,
+     * so a crash while writing leaves the old file.
+     * @param props
+     * @param file
+     * @throws IOException 
+     */
+    public static void storeAtomically(Properties props, File file) throws IOException{
+        File tmp = new File(file.getPath() + ".tmp");
+        if(file.getParentFile() != null){
+            file.getParentFile().mkdirs();
+        }
+        try(FileOutputStream fos = new FileOutputStream(tmp)){
+            OutputStream out = new BufferedOutputStream(fos);
+            props.store(out, null);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Reads a whole file into memory. Files that are replaced, truncated or
+     * deleted later on must be read like this rather than mapped: on Windows
+     * that fails for as long as a mapping of the file exists, and a mapping
+     * only goes away when it is garbage collected.
+     * @param file
+     * @return a heap buffer holding the file, positioned at 0
+     * @throws IOException 
+     */
+    public static ByteBuffer readFully(File file) throws IOException{
+        try(FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            return readFully(ch);
+        }
+    }
+    
+    /**
+     * Reads a whole file into memory, see readFully(File).
+     * @param ch
+     * @return a heap buffer holding the file, positioned at 0
+     * @throws IOException 
+     */
+    public static ByteBuffer readFully(FileChannel ch) throws IOException{
+        long size = ch.size();
+        if(size > Integer.MAX_VALUE){
+            throw new IOException("File too large: " + size + " bytes");
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) size);
+        while(buf.hasRemaining()){
+            if(ch.read(buf, buf.position()) == -1){
+                throw new IOException("Stream ended.");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+    
+    /**
+     * Copies exactly count bytes from in to out.
+     * @param in
+     * @param out
+     * @param count
+     * @throws IOException if in ends before that
+     */
+    public static void copy(InputStream in, OutputStream out, long count) throws IOException{
+        byte[] buffer = BufferPool.IO.take();
+        try{
+            while(count > 0){
+                int rd = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if (rd == -1){
+                    throw new IOException("Stream ended.");
+                }
+                out.write(buffer, 0, rd);
+                count -= rd;
+            }
+        }finally{
+            BufferPool.IO.give(buffer);
+        }
+    }
+    
     public static byte[] getBytes(InputStream in, int count) throws IOException{
         byte[] bytes = new byte[count];
         int read = 0;
@@ -0,0 +1,170 @@
+package lolpatcher;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks that depend on each other, as many at once as the dependencies
+ * and the number of threads allow. To Main this is a single task. Its
+ * percentage is the average of those of the tasks, its currentFile that of one
+ * of the running tasks.
+ *
+ * Everything downloads through the shared ConnectionPool, so tasks that run at
+ * the same time share its connections rather than opening more of them.
+ *
+ * A task that fails, or returns without being done, stops the tasks that
+ * depend on it. The others carry on. Its error is passed on, so Main shows it,
+ * and the graph is not done either.
+ * @author Rick
+ */
+public class TaskGraph extends PatchTask{
+    private static class Node{
+        final PatchTask task;
+        final Node[] after;
+        volatile boolean started, finished;
+
+        Node(PatchTask task, Node[] after) {
+            this.task = task;
+            this.after = after;
+        }
+
+        boolean succeeded(){
+            return finished && task.done && task.error == null;
+        }
+    }
+
+    private final ArrayList<Node> nodes = new ArrayList<>();
+    private final HashMap<PatchTask, Node> byTask = new HashMap<>();
+    private final int threads;
+
+    /**
+     * @param threads  how many tasks may run at once
+     */
+    public TaskGraph(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Adds a task. Tasks have to be added after the tasks they depend on, so
+     * there can not be cycles.
+     * @param task
+     * @param after  the tasks that have to be done before this one starts
+     * @return task
+     */
+    public PatchTask add(PatchTask task, PatchTask... after){
+        Node[] deps = new Node[after.length];
+        for(int i = 0; i < after.length; i++){
+            deps[i] = byTask.get(after[i]);
+            if(deps[i] == null){
+                throw new IllegalArgumentException("Add " + after[i] + " before the tasks that depend on it");
+            }
+        }
+        Node n = new Node(task, deps);
+        nodes.add(n);
+        byTask.put(task, n);
+        return task;
+    }
+
+    @Override
+    public void patch() throws MalformedURLException, IOException, NoSuchAlgorithmException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ExecutorCompletionService<Node> completed = new ExecutorCompletionService<>(pool);
+        int running = 0;
+        try{
+            while(true){
+                if(!done){
+                    for(Node n : nodes){
+                        if(!n.started && isReady(n)){
+                            n.started = true;
+                            running++;
+                            completed.submit(run(n));
+                        }
+                    }
+                }
+                if(running == 0){
+                    break;
+                }
+                Future<Node> f = completed.poll(100, TimeUnit.MILLISECONDS);
+                if(done){ // cancelled
+                    for(Node n : nodes){
+                        if(n.started && !n.finished){
+                            n.task.done = true;
+                        }
+                    }
+                }
+                currentFile = getRunningFile();
+                if(f == null){
+                    continue;
+                }
+                running--;
+                Node n = f.get();
+                n.finished = true;
+                if(n.task.error != null){
+                    error = n.task.error;
+                }
+            }
+        }catch(InterruptedException ex){
+            throw new IOException("Interrupted while waiting for tasks", ex);
+        }catch(ExecutionException ex){
+            throw new IOException(ex.getCause());
+        }finally{
+            pool.shutdown();
+        }
+        for(Node n : nodes){
+            if(!n.succeeded()){
+                return;
+            }
+        }
+        done = true;
+    }
+
+    private static Callable<Node> run(final Node n){
+        return new Callable<Node>() {
+            @Override
+            public Node call() {
+                n.task.run(); // catches everything, and keeps it in task.error
+                return n;
+            }
+        };
+    }
+
+    private static boolean isReady(Node n){
+        for(Node d : n.after){
+            if(!d.succeeded()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String getRunningFile(){
+        for(Node n : nodes){
+            if(n.started && !n.finished && n.task.currentFile != null){
+                return n.task.currentFile;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public float getPercentage() {
+        if(nodes.isEmpty()){
+            return 100;
+        }
+        float sum = 0;
+        for(Node n : nodes){
+            sum += n.succeeded() ? 100 : Math.max(0, Math.min(100, n.task.getPercentage()));
+        }
+        return sum / nodes.size();
+    }
+}
@@ -0,0 +1,161 @@
+package lolpatcher;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lolpatcher.manifest.ManifestFile;
+
+/**
+ * Remembers which files were found to match their checksum, so a thorough
+ * repair does not have to read everything again. A loose file is trusted
+ * while its size and modification time are the same, an archive entry while
+ * it has the same offset and size in the .raf.dat.
+ *
+ * The cache is kept in RADS/[type]/[project]/verification.cache.
+ * @author Rick
+ */
+public class VerificationCache {
+    private static final long SAVE_INTERVAL = 10000;
+
+    private final File file;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private boolean changed = false;
+    private boolean saving = false;
+    private long lastSave = 0;
+    /** held while the file is written, so two saves do not write it at once */
+    private final Object writeLock = new Object();
+
+    private static class Entry{
+        final long a, b; // size and mtime, or offset and size
+        final String checksum;
+
+        Entry(long a, long b, String checksum) {
+            this.a = a;
+            this.b = b;
+            this.checksum = checksum;
+        }
+    }
+
+    public VerificationCache(String type, String project){
+        file = new File("RADS/" + type + "/" + project + "/verification.cache");
+        if(file.exists()){
+            Properties props = new Properties();
+            try(InputStream in = new BufferedInputStream(new FileInputStream(file))){
+                props.load(in);
+            } catch (IOException ex) {
+                Logger.getLogger(VerificationCache.class.getName()).log(Level.WARNING, "Ignoring unreadable verification cache", ex);
+            }
+            for(String key : props.stringPropertyNames()){
+                String[] sp = props.getProperty(key).split(",");
+                try{
+                    entries.put(key, new Entry(Long.parseLong(sp[0]), Long.parseLong(sp[1]), sp[2]));
+                }catch(NumberFormatException | ArrayIndexOutOfBoundsException e){
+                    // that file is just hashed again
+                }
+            }
+        }
+    }
+
+    /**
+     * @param f
+     * @param file  where f is
+     * @return true if file was verified before, and did not change since
+     */
+    public boolean isVerified(ManifestFile f, File file){
+        return isVerified(file.getPath(), file.length(), file.lastModified(), f);
+    }
+
+    /**
+     * Records that file has the right checksum. Call this after it is closed.
+     * @param f
+     * @param file
+     */
+    public void setVerified(ManifestFile f, File file){
+        setVerified(file.getPath(), file.length(), file.lastModified(), f);
+    }
+
+    /**
+     * @param f  a file in an archive
+     * @param offset  where it is in the .raf.dat
+     * @param size
+     * @return true if the entry was verified before, and was not moved since
+     */
+    public boolean isVerified(ManifestFile f, long offset, long size){
+        return isVerified(DownloadLedger.archiveKey(f.getRelease(), f.getPath() + f.getName()), offset, size, f);
+    }
+
+    public void setVerified(ManifestFile f, long offset, long size){
+        setVerified(DownloadLedger.archiveKey(f.getRelease(), f.getPath() + f.getName()), offset, size, f);
+    }
+
+    private synchronized boolean isVerified(String key, long a, long b, ManifestFile f){
+        Entry e = entries.get(key);
+        return e != null && e.a == a && e.b == b && e.checksum.equals(f.getChecksumHex());
+    }
+
+    private void setVerified(String key, long a, long b, ManifestFile f){
+        synchronized(this){
+            entries.put(key, new Entry(a, b, f.getChecksumHex()));
+            changed = true;
+        }
+        save(false);
+    }
+
+    /**
+     * Writes the cache, unless that was done recently. The entries are copied
+     * under the lock, but written outside of it, so the hashers that record
+     * files meanwhile do not wait for the disk.
+     * @param force  write even if it was written recently
+     */
+    public void save(boolean force){
+        synchronized(this){
+            long now = System.currentTimeMillis();
+            if(!changed || !force && (saving || now - lastSave < SAVE_INTERVAL)){
+                return;
+            }
+            saving = true;
+            lastSave = now;
+        }
+        try{
+            write();
+        }finally{
+            synchronized(this){
+                saving = false;
+            }
+        }
+    }
+
+    private void write(){
+        synchronized(writeLock){
+            HashMap<String, Entry> snapshot;
+            synchronized(this){
+                if(!changed){
+                    return; // somebody else wrote it while we waited
+                }
+                snapshot = new HashMap<>(entries);
+                changed = false;
+            }
+            Properties props = new Properties();
+            for(Map.Entry<String, Entry> me : snapshot.entrySet()){
+                Entry e = me.getValue();
+                props.setProperty(me.getKey(), e.a + "," + e.b + "," + e.checksum);
+            }
+            try{
+                StreamUtils.storeAtomically(props, file);
+            } catch (IOException ex) {
+                synchronized(this){
+                    changed = true;
+                }
+                // not fatal, the next repair just hashes more
+                Logger.getLogger(VerificationCache.class.getName()).log(Level.WARNING, "Could not write the verification cache", ex);
+            }
+        }
+    }
+}
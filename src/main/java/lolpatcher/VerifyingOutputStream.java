@@ -0,0 +1,105 @@
+package lolpatcher;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.InflaterOutputStream;
+import lolpatcher.manifest.ManifestFile;
+
+/**
+ * Computes the md5 of everything written through it, so a download is checked
+ * while it is written instead of being read back afterwards. When it is closed
+ * the result is compared with the checksum in the manifest.
+ *
+ * Closing does not throw when the checksum is wrong, because a download that
+ * was cancelled halfway is closed too. Check isVerified() after a download
+ * that ran to the end.
+ * @author Rick
+ */
+public class VerifyingOutputStream extends FilterOutputStream{
+    private final ManifestFile mf;
+    private final MessageDigest md;
+    private final OutputStream hasher;
+    private final boolean compressed;
+    private boolean closed = false;
+    private boolean verified = false;
+
+    /**
+     * @param out  where the bytes go, or null to only check them
+     * @param mf
+     * @param compressed  whether the bytes are deflated. They are inflated for
+     * the checksum, out still gets them as they are.
+     */
+    public VerifyingOutputStream(OutputStream out, ManifestFile mf, boolean compressed){
+        super(out);
+        this.mf = mf;
+        this.compressed = compressed;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Error("This should never happen. md5 not found", ex);
+        }
+        OutputStream digester = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                md.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                md.update(b, off, len);
+                PatchTask.hash.add(len);
+            }
+        };
+        hasher = compressed ? new InflaterOutputStream(digester) : digester;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(out != null){
+            out.write(b, off, len);
+        }
+        if(compressed){
+            PatchTask.inflate.add(len);
+        }
+        hasher.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(out != null){
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed){
+            return;
+        }
+        closed = true;
+        try{
+            hasher.close();
+            verified = mf.checksumEquals(md.digest());
+        }catch(IOException e){
+            verified = false; // not valid deflate data
+        }
+        if(out != null){
+            out.close();
+        }
+    }
+
+    /**
+     * @return true if this was closed after the right bytes were written
+     */
+    public boolean isVerified(){
+        return verified;
+    }
+}
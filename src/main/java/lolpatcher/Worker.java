@@ -5,11 +5,12 @@ import java.io.InputStream;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import static lolpatcher.PatchTask.speedStat;
+import static lolpatcher.PatchTask.hash;
 import lolpatcher.manifest.ManifestFile;
+import nl.xupwup.Util.BufferPool;
+import nl.xupwup.Util.ConnectionPool;
 import nl.xupwup.Util.MiniHttpClient;
 
 /**
@@ -21,6 +22,17 @@ public abstract class Worker extends Thread{
     public long startTime = -1;
     String current;
     boolean alternative; // for example true when hashing, false when downloading
+    /**
+     * How many requests a worker sends ahead on its connection. Most files are
+     * tiny, so without this a download is mostly waiting for the round trip.
+     */
+    static final int PIPELINE_DEPTH = 8;
+    static final String CDN = "l3cdn.riotgames.com";
+    /**
+     * How often a download is flushed to disk and recorded in the ledger, so
+     * a restart can continue from there.
+     */
+    static final int CHECKPOINT_BYTES = 1 << 20;
     MiniHttpClient.ErrorHandler<Exception> defaultHttpErrorHandler = new MiniHttpClient.ErrorHandler<Exception>() {
         @Override
         public int handle(Exception t) {
@@ -30,27 +42,39 @@ public abstract class Worker extends Thread{
     };
     
     
+    /**
+     * Borrows a connection to the cdn from the shared pool. Close it to return it.
+     */
+    protected ConnectionPool.Connection connect() throws IOException{
+        ConnectionPool.Connection con = ConnectionPool.getShared().acquire(CDN);
+        con.client.throwExceptionWhenNot200 = true;
+        con.client.setErrorHandler(defaultHttpErrorHandler);
+        return con;
+    }
+    
     protected boolean checkHash(InputStream in, LoLPatcher patcher, ManifestFile f, boolean updateProgress) {
         try {
             long total = 0;
             MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = BufferPool.IO.take();
             try (InputStream is = new DigestInputStream(in, md)) {
                 int read;
-                byte[] buffer = new byte[4096];
                 while((read = is.read(buffer)) != -1){
                     total += read;
                     if(updateProgress){
-                        progress = (float) total / f.sizeCompressed;
+                        progress = (float) total / f.getSizeCompressed();
                     }
-                    speedStat(read);
+                    hash.add(read);
                     if(patcher.done) return true;
                 }
             } catch (IOException ex) {
                 ex.printStackTrace();
                 return false;
+            } finally {
+                BufferPool.IO.give(buffer);
             }
             byte[] digest = md.digest();
-            return Arrays.equals(digest, f.checksum);
+            return f.checksumEquals(digest);
         } catch (NoSuchAlgorithmException ex) {
             Logger.getLogger(Worker.class.getName()).log(Level.SEVERE, null, ex);
         }
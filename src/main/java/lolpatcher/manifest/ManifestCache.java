@@ -0,0 +1,199 @@
+package lolpatcher.manifest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import nl.xupwup.Util.BufferPool;
+import nl.xupwup.Util.ConnectionPool;
+import nl.xupwup.Util.MiniHttpClient;
+
+/**
+ * Keeps release manifests around, so they are not downloaded and parsed again
+ * by every task that needs them.
+ *
+ * Parsed manifests are kept in memory for the rest of the session. On disk,
+ * the releasemanifest under RADS/ is accompanied by a small properties file
+ * holding the version it belongs to and the caching headers of the response
+ * it came from. While that is fresh the network is not touched at all, after
+ * that it is revalidated with If-None-Match/If-Modified-Since.
+ *
+ * Note that the version has to be checked: LoLPatcher renames the directory of
+ * the previous release to the new version, releasemanifest and all.
+ * @author Rick
+ */
+public class ManifestCache {
+    private static final String SERVER = "l3cdn.riotgames.com";
+    private static final HashMap<String, SoftReference<ReleaseManifest>> memory = new HashMap<>();
+    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    private ManifestCache(){}
+
+    /**
+     * @param branch
+     * @param type  for example "projects"
+     * @param component  for example "lol_game_client"
+     * @param version
+     * @return the release manifest
+     * @throws IOException
+     */
+    public static ReleaseManifest get(String branch, String type, String component, String version) throws IOException{
+        String key = branch + "/" + type + "/" + component + "/" + version;
+        // one lock per manifest, so patchers that run at the same time do not wait for each other's downloads
+        synchronized(lockFor(key)){
+            SoftReference<ReleaseManifest> ref;
+            synchronized(memory){
+                ref = memory.get(key);
+            }
+            ReleaseManifest mf = ref == null ? null : ref.get();
+            if(mf == null){
+                mf = load(branch, type, component, version);
+                synchronized(memory){
+                    memory.put(key, new SoftReference<>(mf));
+                }
+            }
+            return mf;
+        }
+    }
+    
+    private static Object lockFor(String key){
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(key, lock);
+        return existing == null ? lock : existing;
+    }
+
+    private static ReleaseManifest load(String branch, String type, String component, String version) throws IOException{
+        File f = new File("RADS/" + type + "/" + component + "/releases/" + version + "/releasemanifest");
+        File meta = new File(f.getParent(), "releasemanifest.cache");
+        String id = branch + "/" + type + "/" + component + "/" + version;
+
+        Properties props = null;
+        if(f.exists() && meta.exists()){
+            props = new Properties();
+            try(InputStream in = new FileInputStream(meta)){
+                props.load(in);
+            }
+            if(!id.equals(props.getProperty("id"))){
+                props = null; // this is the manifest of some other release
+            }
+        }
+        if(props != null && Long.parseLong(props.getProperty("expires", "0")) > System.currentTimeMillis()){
+            try{
+                return new ReleaseManifest(f);
+            }catch(IOException e){
+                props = null; // damaged, get a new one
+            }
+        }
+
+        String url = "/releases/" + branch + "/" + type + "/" + component + "/releases/" + version + "/releasemanifest";
+        ArrayList<String> conditions = new ArrayList<>();
+        if(props != null && props.getProperty("etag") != null){
+            conditions.add("If-None-Match: " + props.getProperty("etag"));
+        }
+        if(props != null && props.getProperty("lastModified") != null){
+            conditions.add("If-Modified-Since: " + props.getProperty("lastModified"));
+        }
+
+        new File(f.getParent()).mkdirs();
+        try(ConnectionPool.Connection con = ConnectionPool.getShared().acquire(SERVER)){
+            MiniHttpClient.HttpResult res = con.client.get(url, conditions.toArray(new String[conditions.size()]));
+            if(res.code == 304 && props != null){
+                writeMeta(meta, id, res, props);
+                return new ReleaseManifest(f);
+            }
+            if(res.code != 200){
+                throw new IOException(res.headers.get(0) + ", for url: " + url);
+            }
+            File tmp = new File(f.getParent(), "releasemanifest.tmp");
+            byte[] buffer = BufferPool.IO.take();
+            try(OutputStream fo = new FileOutputStream(tmp)){
+                int read;
+                while((read = res.in.read(buffer)) != -1){
+                    fo.write(buffer, 0, read);
+                }
+            }finally{
+                BufferPool.IO.give(buffer);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            writeMeta(meta, id, res, new Properties());
+        }
+        return new ReleaseManifest(f);
+    }
+
+    /**
+     * Stores the validators and the expiry time of a response. When there is no
+     * max-age the usual heuristic is used: a tenth of the time since the
+     * resource was last modified.
+     */
+    private static void writeMeta(File meta, String id, MiniHttpClient.HttpResult res, Properties props) throws IOException{
+        long now = System.currentTimeMillis();
+        props.setProperty("id", id);
+        String etag = res.getHeader("ETag");
+        if(etag != null){
+            props.setProperty("etag", etag);
+        }
+        String lastModified = res.getHeader("Last-Modified");
+        if(lastModified != null){
+            props.setProperty("lastModified", lastModified);
+        }
+
+        long expires = now;
+        String cacheControl = res.getHeader("Cache-Control");
+        long maxAge = -1;
+        if(cacheControl != null){
+            for(String directive : cacheControl.split(",")){
+                directive = directive.trim().toLowerCase();
+                if(directive.equals("no-cache") || directive.equals("no-store")){
+                    maxAge = 0;
+                    break;
+                }
+                if(directive.startsWith("max-age=")){
+                    try{
+                        maxAge = Long.parseLong(directive.substring("max-age=".length()));
+                    }catch(NumberFormatException e){
+                        maxAge = 0;
+                    }
+                }
+            }
+        }
+        if(maxAge != -1){
+            expires = now + maxAge * 1000;
+        }else if(props.getProperty("lastModified") != null){
+            Date modified = parseDate(props.getProperty("lastModified"));
+            if(modified != null && modified.getTime() < now){
+                expires = now + (now - modified.getTime()) / 10;
+            }
+        }
+        props.setProperty("expires", Long.toString(expires));
+
+        File tmp = new File(meta.getParent(), meta.getName() + ".tmp");
+        try(OutputStream out = new FileOutputStream(tmp)){
+            props.store(out, null);
+        }
+        Files.move(tmp.toPath(), meta.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Date parseDate(String httpDate){
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try{
+            return format.parse(httpDate);
+        }catch(ParseException e){
+            return null;
+        }
+    }
+}
@@ -1,24 +1,46 @@
 package lolpatcher.manifest;
 
 /**
- *
+ * One file in a release manifest. This does not hold any data itself, it is
+ * a view on the columns of the manifest it belongs to. The manifest keeps one
+ * view per file, so comparing views by identity is fine.
  * @author Rick
  */
 public class ManifestFile{
-    public final String release;
-    public final int releaseInt;
-    public final String name;
-    public String path;
-    public final byte[] checksum;
-    public final int sizeCompressed;
-    public final int sizeUncompressed; // use this value instead of size when type is 6
+    private final ReleaseManifest manifest;
+    private final int index;
 
-    @Override
-    public String toString() {
-        return path + name + " " +release + " type:" + fileType + " u2:" + sizeUncompressed + " u3:"+unknown3 + " u4:" + unknown4;
+    ManifestFile(ReleaseManifest manifest, int index) {
+        this.manifest = manifest;
+        this.index = index;
+    }
+
+    public ReleaseManifest getManifest(){
+        return manifest;
+    }
+
+    /**
+     * @return the position of this file in the files array of its manifest
+     */
+    public int getIndex(){
+        return index;
+    }
+
+    public String getRelease(){
+        return manifest.releaseName(index);
     }
 
+    public int getReleaseInt(){
+        return manifest.releases[index];
+    }
 
+    public String getName(){
+        return manifest.name(index);
+    }
+
+    public String getPath(){
+        return manifest.path(index);
+    }
 
     /**
      * 6 = uncompressed - archive
@@ -28,25 +50,87 @@ public class ManifestFile{
      * 0 = normal file
      * 2 = compressed file
      * 4 = copy to sln?
+     * @return
      */
-    public final int fileType;
-    
-    public final int unknown3;
-    public final int unknown4;
-
-    public ManifestFile(String release, int releaseInt, String name, byte[] checksum, int sizeCompressed,
-            int fileType, int sizeUncompressed, int unknown3, int unknown4) {
-        this.release = release;
-        this.releaseInt = releaseInt;
-        this.name = name;
-        this.checksum = checksum;
-        this.sizeCompressed = sizeCompressed;
-        this.fileType = fileType;
-        if(fileType != 0 && fileType != 2 && fileType != 5 && fileType != 6 && fileType != 22 && fileType != 4){
-            System.out.println("Hmm... fileType = " + fileType + " (" + name + ")");
+    public int getFileType(){
+        return manifest.fileTypes[index];
+    }
+
+    public int getSizeCompressed(){
+        return manifest.sizesCompressed[index];
+    }
+
+    /**
+     * Use this value instead of the compressed size when the type is 6.
+     * @return
+     */
+    public int getSizeUncompressed(){
+        return manifest.sizesUncompressed[index];
+    }
+
+    public int getUnknown3(){
+        return manifest.unknowns3[index];
+    }
+
+    public int getUnknown4(){
+        return manifest.unknowns4[index];
+    }
+
+    /**
+     * @return a copy of the md5 checksum of the uncompressed file
+     */
+    public byte[] getChecksum(){
+        byte[] checksum = new byte[16];
+        System.arraycopy(manifest.checksums, index * 16, checksum, 0, 16);
+        return checksum;
+    }
+
+    /**
+     * @return the md5 checksum as 32 hex digits
+     */
+    public String getChecksumHex(){
+        StringBuilder sb = new StringBuilder(32);
+        byte[] checksums = manifest.checksums;
+        for(int i = index * 16; i < index * 16 + 16; i++){
+            sb.append(Character.forDigit((checksums[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(checksums[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param digest
+     * @return true if digest is the md5 checksum of this file
+     */
+    public boolean checksumEquals(byte[] digest){
+        if(digest.length != 16){
+            return false;
         }
-        this.sizeUncompressed = sizeUncompressed;
-        this.unknown3 = unknown3;
-        this.unknown4 = unknown4;
+        byte[] checksums = manifest.checksums;
+        int off = index * 16;
+        for(int i = 0; i < 16; i++){
+            if(checksums[off + i] != digest[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean checksumEquals(ManifestFile other){
+        byte[] a = manifest.checksums;
+        byte[] b = other.manifest.checksums;
+        int aoff = index * 16;
+        int boff = other.index * 16;
+        for(int i = 0; i < 16; i++){
+            if(a[aoff + i] != b[boff + i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return getPath() + getName() + " " + getRelease() + " type:" + getFileType() + " u2:" + getSizeUncompressed() + " u3:" + getUnknown3() + " u4:" + getUnknown4();
     }
-}
\ No newline at end of file
+}
@@ -1,16 +1,19 @@
 package lolpatcher.manifest;
 
-import java.io.BufferedInputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
-
-import static lolpatcher.StreamUtils.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lolpatcher.StreamUtils;
 
 
 public class ReleaseManifest {
@@ -22,8 +25,36 @@ public class ReleaseManifest {
     String releaseName;
     
     public Directory[] directories;
+    /**
+     * One view per file. The data of the files lives in the columns below.
+     */
     public ManifestFile[] files;
-    private final HashMap<String, ManifestFile> fileDictionary;
+    
+    // file columns, indexed like files
+    int[] releases;
+    int[] fileTypes;
+    int[] sizesCompressed;
+    int[] sizesUncompressed;
+    int[] unknowns3;
+    int[] unknowns4;
+    byte[] checksums; // 16 bytes per file
+    private int[] nameIndices;
+    private int[] directoryIndices;
+    private int[] releaseNameIndices;
+    private String[] releaseNames; // one per distinct release
+    
+    // the string table of the manifest, decoded on demand
+    private byte[] stringTable;
+    private int[] stringOffsets;
+    private String[] strings;
+    
+    private int[] fileTable; // file index + 1, 0 is an empty slot
+    
+    private int[] directoryRecords; // 5 ints per directory, as in the manifest
+    
+    private static final int SNAPSHOT_MAGIC = 0x58494d52; // "RMIX"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int FILE_RECORD = 44; // 7 ints and a 16 byte checksum
     
     
     
@@ -42,52 +73,86 @@ public class ReleaseManifest {
     
     
     
-    private class DirectoryMetaData{
-        public DirectoryMetaData(int nameindex, int subdirFirstIndex, int nsubdirs, int firstfileIndex, int fileCount) {
-            this.nameindex = nameindex;
-            this.subdirFirstIndex = subdirFirstIndex;
-            this.nsubdirs = nsubdirs;
-            this.firstfileIndex = firstfileIndex;
-            this.fileCount = fileCount;
+    /**
+     * Finds a file by its full path. This does not allocate, and only decodes
+     * the names of files whose hash matches.
+     * @param path
+     * @return the file, or null if this manifest does not contain it
+     */
+    public ManifestFile getFile(String path){
+        int[] t = fileTable;
+        int mask = t.length - 1;
+        int s = spread(hashUtf8(0, path)) & mask;
+        int i;
+        while((i = t[s] - 1) != -1){
+            String dir = path(i);
+            if(dir.length() < path.length() && path.startsWith(dir)){
+                String name = name(i);
+                if(dir.length() + name.length() == path.length()
+                        && path.regionMatches(dir.length(), name, 0, name.length())){
+                    return files[i];
+                }
+            }
+            s = (s + 1) & mask;
         }
-        
-        int nameindex;
-        int subdirFirstIndex;
-        int nsubdirs;
-        int firstfileIndex;
-        int fileCount;
+        return null;
     }
     
-    public class FileMetaData{
-
-        public FileMetaData(int nameindex, int release, byte[] checksum, int fileType, int sizeUncompressed, int size, int unknownInt3, int unknownInt4) {
-            this.nameindex = nameindex;
-            this.release = release;
-            this.checksum = checksum;
-            this.fileType = fileType;
-            this.sizeUncompressed = sizeUncompressed;
-            this.sizeCompressed = size;
-            this.unknownInt3 = unknownInt3;
-            this.unknownInt4 = unknownInt4;
+    String name(int file){
+        return string(nameIndices[file]);
+    }
+    
+    String path(int file){
+        return directories[directoryIndices[file]].path;
+    }
+    
+    String releaseName(int file){
+        return releaseNames[releaseNameIndices[file]];
+    }
+    
+    /**
+     * Note that several threads may decode the same string at the same time. 
+     * That is harmless, they all end up with an equal string.
+     */
+    private String string(int i){
+        String s = strings[i];
+        if(s == null){
+            int length = stringOffsets[i + 1] - stringOffsets[i] - 1; // -1 to clip \0
+            s = new String(stringTable, stringOffsets[i], length, StandardCharsets.UTF_8);
+            strings[i] = s;
         }
-        
-        int nameindex;
-        int release;
-        byte[] checksum;
-        /**
-         * Type
-         * 5 = managed file
-         */
-        int fileType;
-        int sizeCompressed; // size compressed. No idea what this means if a file is not supposed to be compressed
-        int sizeUncompressed; // the size of a file when its not compressed
-        int unknownInt3;
-        int unknownInt4;
+        return s;
     }
     
+    private static int spread(int hash){
+        return hash * 0x9E3779B9;
+    }
     
-    public ManifestFile getFile(String path){
-        return fileDictionary.get(path);
+    /**
+     * Continues a hash over the UTF-8 encoding of s, without actually encoding
+     * it. This gives the same result as hashing the bytes in the string table.
+     */
+    private static int hashUtf8(int h, String s){
+        for(int i = 0; i < s.length(); i++){
+            int c = s.charAt(i);
+            if(c < 0x80){
+                h = 31 * h + c;
+            }else if(c < 0x800){
+                h = 31 * h + (0xC0 | c >> 6);
+                h = 31 * h + (0x80 | c & 0x3F);
+            }else if(Character.isHighSurrogate((char) c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))){
+                int cp = Character.toCodePoint((char) c, s.charAt(++i));
+                h = 31 * h + (0xF0 | cp >> 18);
+                h = 31 * h + (0x80 | cp >> 12 & 0x3F);
+                h = 31 * h + (0x80 | cp >> 6 & 0x3F);
+                h = 31 * h + (0x80 | cp & 0x3F);
+            }else{
+                h = 31 * h + (0xE0 | c >> 12);
+                h = 31 * h + (0x80 | c >> 6 & 0x3F);
+                h = 31 * h + (0x80 | c & 0x3F);
+            }
+        }
+        return h;
     }
     
     public static String getReleaseName(int rel){
@@ -111,125 +176,299 @@ public class ReleaseManifest {
         return r;
     }
     
+    /**
+     * Gets a release manifest through the ManifestCache. It is only downloaded
+     * when there is no usable copy in memory or under RADS/.
+     */
     public static ReleaseManifest getReleaseManifest(String component, String version, String branch, String type) throws IOException{
-        URL u = new URL("http://l3cdn.riotgames.com/releases/"+branch+"/"+type+"/"+component+"/releases/"+version+"/releasemanifest");
-        URLConnection con = u.openConnection();
-        java.io.File f = new java.io.File("RADS/"+type + "/" + component + "/releases/" + version + "/releasemanifest");
-        new java.io.File(f.getParent()).mkdirs();
-        f.createNewFile();
-        
-        try (InputStream in = con.getInputStream()) {
-            try (OutputStream fo = new FileOutputStream(f)) {
-                int read;
-                byte[] buffer = new byte[2048];
-                while((read = in.read(buffer)) != -1){
-                    fo.write(buffer, 0, read);
-                }
-            }
-        }
-        return new ReleaseManifest(f);
+        return ManifestCache.get(branch, type, component, version);
     }
     
     /**
+     * Reads a release manifest. The file is read and the records are copied
+     * into columns, one array per field. Names are only decoded (as UTF-8) when 
+     * somebody asks for them.
      * 
+     * The parsed columns and the lookup table are also written to a snapshot
+     * next to the manifest (releasemanifest.idx). As long as the manifest does 
+     * not change, later runs load that instead, which is mostly bulk copies.
      * @param f
      * @throws java.io.IOException
      */
     public ReleaseManifest(java.io.File f) throws IOException{
-        try (InputStream data = new BufferedInputStream(new FileInputStream(f))) {
-            magicHeaderInt = getInt(data);
-            filetype = getInt(data);
-            itemCount = getInt(data);
-            
-            releaseVersion = getInt(data);
-            releaseName = getReleaseName(releaseVersion);
-            
-            
-            DirectoryMetaData[] directoryMetaDatas = new DirectoryMetaData[getInt(data)];
-            
-            for(int i = 0; i < directoryMetaDatas.length; i++){
-                directoryMetaDatas[i] = new DirectoryMetaData(getInt(data),
-                        getInt(data),
-                        getInt(data),
-                        getInt(data),
-                        getInt(data));
+        java.io.File snapshot = new java.io.File(f.getParentFile(), f.getName() + ".idx");
+        if(readSnapshot(f, snapshot)){
+            return;
+        }
+        parse(f);
+        buildFileTable();
+        try{
+            writeSnapshot(f, snapshot);
+        }catch(IOException e){
+            Logger.getLogger(ReleaseManifest.class.getName()).log(Level.WARNING, "Could not write " + snapshot, e);
+        }
+    }
+    
+    private void parse(java.io.File f) throws IOException{
+        // not mapped, the manifest may be replaced while this object is still around
+        ByteBuffer data = StreamUtils.readFully(f);
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        try{
+            magicHeaderInt = data.getInt();
+            filetype = data.getInt();
+            itemCount = data.getInt();
+
+            releaseVersion = data.getInt();
+
+            directoryRecords = getInts(data, data.getInt() * 5);
+
+            int nfiles = data.getInt();
+            int fileRecords = data.position();
+            data.position(fileRecords + nfiles * FILE_RECORD);
+
+            int nstrings = data.getInt();
+            data.getInt(); // data size, ignored
+            stringTable = new byte[data.remaining()];
+            data.get(stringTable);
+            stringOffsets = new int[nstrings + 1];
+            int idx = 0;
+            for(int i = 0; i < stringTable.length && idx < nstrings; i++){
+                if(stringTable[i] == '\0'){
+                    stringOffsets[++idx] = i + 1;
+                }
             }
             
-            FileMetaData[] fileMetaDatas = new FileMetaData[getInt(data)];
-            for(int i = 0; i < fileMetaDatas.length; i++){
-                fileMetaDatas[i] = new FileMetaData(
-                		getInt(data),
-                        getInt(data), 
-                        getBytes(data, 16), 
-                        getInt(data), 
-                        getInt(data), 
-                        getInt(data), 
-                        getInt(data), 
-                        getInt(data));
+            releases = new int[nfiles];
+            fileTypes = new int[nfiles];
+            sizesCompressed = new int[nfiles];
+            sizesUncompressed = new int[nfiles];
+            unknowns3 = new int[nfiles];
+            unknowns4 = new int[nfiles];
+            checksums = new byte[nfiles * 16];
+            nameIndices = new int[nfiles];
+            releaseNameIndices = new int[nfiles];
+            HashMap<Integer, Integer> distinctReleases = new HashMap<>();
+            ArrayList<String> names = new ArrayList<>();
+            for(int i = 0; i < nfiles; i++){
+                int record = fileRecords + i * FILE_RECORD;
+                nameIndices[i] = data.getInt(record);
+                if(nameIndices[i] < 0 || nameIndices[i] >= nstrings){
+                    throw new IOException("Corrupt release manifest: " + f + " (bad name index)");
+                }
+                int release = data.getInt(record + 4);
+                releases[i] = release;
+                Integer slot = distinctReleases.get(release);
+                if(slot == null){
+                    slot = names.size();
+                    names.add(getReleaseName(release));
+                    distinctReleases.put(release, slot);
+                }
+                releaseNameIndices[i] = slot;
+                data.position(record + 8);
+                data.get(checksums, i * 16, 16);
+                fileTypes[i] = data.getInt(record + 24);
+                sizesUncompressed[i] = data.getInt(record + 28);
+                sizesCompressed[i] = data.getInt(record + 32);
+                unknowns3[i] = data.getInt(record + 36);
+                unknowns4[i] = data.getInt(record + 40);
             }
-            String[] strs = new String[getInt(data)];
-            int datasize = getInt(data); // ignored
+            releaseNames = names.toArray(new String[names.size()]);
+            link();
             
-            int c;
-            int idx = 0;
-            StringBuilder sb = new StringBuilder();
-            while((c = data.read()) != -1){
-                if(c == '\0'){
-                    strs[idx] = sb.toString();
-                    sb = new StringBuilder();
-                    idx++;
-                    continue;
+            for(int i = 0; i < nfiles; i++){
+                int type = fileTypes[i];
+                if(type != 0 && type != 2 && type != 5 && type != 6 && type != 22 && type != 4){
+                    System.out.println("Hmm... fileType = " + type + " (" + name(i) + ")");
                 }
-                sb.append((char) c);
             }
-            //assert(component.equals(strs[strs.length - 1]));
-            
-            // creating proper objects
-            directories = new Directory[directoryMetaDatas.length];
-            for(int i = 0; i < directoryMetaDatas.length; i++){
-                directories[i] = new Directory(strs[directoryMetaDatas[i].nameindex]);
+        }catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e){
+            throw new IOException("Corrupt release manifest: " + f, e);
+        }
+    }
+    
+    /**
+     * Creates the directory tree and the file views from the directory records
+     * and the columns.
+     */
+    private void link(){
+        releaseName = getReleaseName(releaseVersion);
+        strings = new String[stringOffsets.length - 1];
+        int ndirectories = directoryRecords.length / 5;
+        directories = new Directory[ndirectories];
+        for(int i = 0; i < ndirectories; i++){
+            directories[i] = new Directory(string(directoryRecords[i * 5]));
+        }
+        // linking subdirectories
+        for(int i = 0; i < ndirectories; i++) {
+            Directory directory = directories[i];
+            int start = directoryRecords[i * 5 + 1];
+            int nsubdirs = directoryRecords[i * 5 + 2];
+            if(start == i) start ++;
+            directory.subdirs = new Directory[nsubdirs];
+
+            for(int j = 0; j < nsubdirs; j++){
+                Directory subDirectory = directories[start + j];
+                directory.subdirs[j] = subDirectory;
+                subDirectory.path = directory.path + subDirectory.path;
             }
-            // linking subdirectories
-            for(int i = 0; i < directoryMetaDatas.length; i++) {
-            	Directory directory = directories[i];
-            	DirectoryMetaData metadata = directoryMetaDatas[i];
-                int start = metadata.subdirFirstIndex;
-                if(start == i) start ++;
-                directory.subdirs = new Directory[metadata.nsubdirs];
-                
-                for(int j = 0; j < metadata.nsubdirs; j++){
-                	Directory subDirectory = directories[start + j];
-                	directory.subdirs[j] = subDirectory;
-                	subDirectory.path = directory.path + subDirectory.path;
-                }
+        }
+        
+        int nfiles = releases.length;
+        files = new ManifestFile[nfiles];
+        for(int i = 0; i < nfiles; i++){
+            files[i] = new ManifestFile(this, i);
+        }
+        // linking files to directories
+        directoryIndices = new int[nfiles];
+        for(int i = 0; i < ndirectories; i++){
+            Directory directory = directories[i];
+            int start = directoryRecords[i * 5 + 3];
+            int fileCount = directoryRecords[i * 5 + 4];
+            directory.files = new ManifestFile[fileCount];
+
+            for(int j = 0; j < fileCount; j++){
+                directory.files[j] = files[start + j];
+                directoryIndices[start + j] = i;
+            }
+        }
+    }
+    
+    private static int[] getInts(ByteBuffer data, int n){
+        if(n < 0 || n > data.remaining() / 4){
+            throw new BufferUnderflowException();
+        }
+        int[] ints = new int[n];
+        data.asIntBuffer().get(ints);
+        data.position(data.position() + n * 4);
+        return ints;
+    }
+    
+    private static void putInts(ByteBuffer data, int[] ints){
+        data.putInt(ints.length);
+        data.asIntBuffer().put(ints);
+        data.position(data.position() + ints.length * 4);
+    }
+    
+    /**
+     * Loads the snapshot, if it exists and was made from this exact manifest
+     * (same length and modification time).
+     * @return false if the manifest has to be parsed instead
+     */
+    private boolean readSnapshot(java.io.File source, java.io.File snapshot){
+        if(!snapshot.exists()){
+            return false;
+        }
+        try{
+            // not mapped, a stale snapshot is replaced by writeSnapshot
+            ByteBuffer data = StreamUtils.readFully(snapshot);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            if(data.getInt() != SNAPSHOT_MAGIC || data.getInt() != SNAPSHOT_VERSION
+                    || data.getLong() != source.length() || data.getLong() != source.lastModified()){
+                return false;
             }
+            magicHeaderInt = data.getInt();
+            filetype = data.getInt();
+            itemCount = data.getInt();
+            releaseVersion = data.getInt();
+            directoryRecords = getInts(data, data.getInt());
+            releases = getInts(data, data.getInt());
+            fileTypes = getInts(data, data.getInt());
+            sizesCompressed = getInts(data, data.getInt());
+            sizesUncompressed = getInts(data, data.getInt());
+            unknowns3 = getInts(data, data.getInt());
+            unknowns4 = getInts(data, data.getInt());
+            nameIndices = getInts(data, data.getInt());
+            releaseNameIndices = getInts(data, data.getInt());
+            int[] distinctReleases = getInts(data, data.getInt());
+            stringOffsets = getInts(data, data.getInt());
+            fileTable = getInts(data, data.getInt());
+            checksums = new byte[data.getInt()];
+            data.get(checksums);
+            stringTable = new byte[data.getInt()];
+            data.get(stringTable);
             
-            files = new ManifestFile[fileMetaDatas.length];
-            for(int i = 0; i < fileMetaDatas.length; i++){
-                FileMetaData meta = fileMetaDatas[i];
-                files[i] = new ManifestFile(getReleaseName(meta.release),
-                        meta.release,
-                        strs[meta.nameindex],
-                        meta.checksum, meta.sizeCompressed,
-                        meta.fileType, meta.sizeUncompressed,
-                        meta.unknownInt3, meta.unknownInt4);
+            int nfiles = releases.length;
+            if(checksums.length != nfiles * 16 || nameIndices.length != nfiles 
+                    || releaseNameIndices.length != nfiles || stringOffsets.length == 0
+                    || Integer.bitCount(fileTable.length) != 1){
+                return false;
             }
-            // linking files to directories
-            for(int i = 0; i < directoryMetaDatas.length; i++){
-            	Directory directory = directories[i];
-            	DirectoryMetaData metadata = directoryMetaDatas[i];
-                int start = metadata.firstfileIndex;
-                directory.files = new ManifestFile[metadata.fileCount];
-                
-                for(int j = 0; j < metadata.fileCount; j++){
-                	directory.files[j] = files[start + j];
-                    files[start + j].path = directory.path;
+            for(int e : fileTable){
+                if(e < 0 || e > nfiles){
+                    return false;
                 }
             }
-            fileDictionary = new HashMap<>(files.length);
-            for(ManifestFile fi : files){
-                fileDictionary.put(fi.path + fi.name, fi);
+            for(int n : nameIndices){
+                if(n < 0 || n >= stringOffsets.length - 1){
+                    return false;
+                }
+            }
+            releaseNames = new String[distinctReleases.length];
+            for(int i = 0; i < releaseNames.length; i++){
+                releaseNames[i] = getReleaseName(distinctReleases[i]);
+            }
+            link();
+            return true;
+        }catch(IOException | RuntimeException e){
+            return false; // parse the manifest instead
+        }
+    }
+    
+    private void writeSnapshot(java.io.File source, java.io.File snapshot) throws IOException{
+        int[] distinctReleases = new int[releaseNames.length];
+        for(int i = 0; i < releaseNames.length; i++){
+            distinctReleases[i] = getReleaseInt(releaseNames[i]);
+        }
+        int[][] columns = {directoryRecords, releases, fileTypes, sizesCompressed, sizesUncompressed,
+            unknowns3, unknowns4, nameIndices, releaseNameIndices, distinctReleases, stringOffsets, fileTable};
+        int size = 8 + 16 + 16 + 4 + checksums.length + 4 + stringTable.length;
+        for(int[] column : columns){
+            size += 4 + column.length * 4;
+        }
+        ByteBuffer data = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION);
+        data.putLong(source.length()).putLong(source.lastModified());
+        data.putInt(magicHeaderInt).putInt(filetype).putInt(itemCount).putInt(releaseVersion);
+        for(int[] column : columns){
+            putInts(data, column);
+        }
+        data.putInt(checksums.length).put(checksums);
+        data.putInt(stringTable.length).put(stringTable);
+        data.flip();
+        
+        java.io.File tmp = new java.io.File(snapshot.getParentFile(), snapshot.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, 
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(data.hasRemaining()){
+                ch.write(data);
+            }
+        }
+        Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * Puts all files in an open addressing table on the hash of path + name.
+     * The hash is taken over the raw bytes of the string table, so no names
+     * need to be decoded for this.
+     */
+    private void buildFileTable(){
+        int[] directoryHashes = new int[directories.length];
+        for(int i = 0; i < directories.length; i++){
+            directoryHashes[i] = hashUtf8(0, directories[i].path);
+        }
+        fileTable = new int[Integer.highestOneBit(Math.max(8, files.length) * 2 - 1) * 2];
+        int mask = fileTable.length - 1;
+        for(int i = 0; i < files.length; i++){
+            int h = directoryHashes[directoryIndices[i]];
+            int n = nameIndices[i];
+            for(int b = stringOffsets[n], end = stringOffsets[n + 1] - 1; b < end; b++){
+                h = 31 * h + (stringTable[b] & 0xFF);
+            }
+            int s = spread(h) & mask;
+            while(fileTable[s] != 0){
+                s = (s + 1) & mask;
             }
+            fileTable[s] = i + 1;
         }
     }
 
@@ -237,7 +476,7 @@ public class ReleaseManifest {
     public String toString() {
         StringBuilder sb = new StringBuilder();
         for(ManifestFile f : files){
-            sb.append(f.path).append(f.name).append(" type:").append(f.fileType).append(" ").append(f.release).append("\n");
+            sb.append(f.getPath()).append(f.getName()).append(" type:").append(f.getFileType()).append(" ").append(f.getRelease()).append("\n");
         }
         return sb.toString();
     }
@@ -0,0 +1,67 @@
+package nl.xupwup.Util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of equally sized byte arrays, so copy loops do not allocate a
+ * new buffer for every stream they copy.
+ *
+ * Taking from an empty pool allocates a new buffer, and a buffer given back to
+ * a full pool is left to the garbage collector. So this never blocks, and never
+ * holds on to more than max buffers.
+ *
+ * Use it like this:
+ * <pre>
+ * byte[] buffer = BufferPool.IO.take();
+ * try{
+ *     ...
+ * }finally{
+ *     BufferPool.IO.give(buffer);
+ * }
+ * </pre>
+ * @author Rick
+ */
+public class BufferPool {
+    /**
+     * For copying file and network data.
+     */
+    public static final BufferPool IO = new BufferPool(64 * 1024, 32);
+    /**
+     * For http header lines and other small reads.
+     */
+    public static final BufferPool SMALL = new BufferPool(4 * 1024, 16);
+
+    private final int size;
+    private final ArrayBlockingQueue<byte[]> free;
+
+    /**
+     * @param size  the length of the buffers
+     * @param max  the maximum number of unused buffers that are kept
+     */
+    public BufferPool(int size, int max) {
+        this.size = size;
+        free = new ArrayBlockingQueue<>(max);
+    }
+
+    /**
+     * @return a buffer of getSize() bytes. Its contents are undefined.
+     */
+    public byte[] take(){
+        byte[] b = free.poll();
+        return b == null ? new byte[size] : b;
+    }
+
+    /**
+     * Returns a buffer to the pool. It must not be used after this.
+     * @param b  a buffer that came from take()
+     */
+    public void give(byte[] b){
+        if(b.length == size){
+            free.offer(b);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+}
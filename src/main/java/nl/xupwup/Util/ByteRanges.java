@@ -0,0 +1,175 @@
+package nl.xupwup.Util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the parts of a response to a range request. This can be a
+ * multipart/byteranges body, a single range (206 with a Content-Range header)
+ * or the whole file (200).
+ *
+ * Usage:
+ * <pre>
+ * ByteRanges br = new ByteRanges(client.get(url, new long[]{0, 99, 500, 599}));
+ * while(br.next()){
+ *     // br.getStart() ... br.getEnd() is in br.in
+ * }
+ * </pre>
+ * @author Rick
+ */
+public class ByteRanges {
+    private final InputStream body;
+    private final String boundary; // null if this is not a multipart body
+    private boolean single; // the one part of a non multipart body was not returned yet
+    private long start, end;
+    private long remaining;
+
+    /**
+     * The current part. It ends at the end of the part.
+     */
+    public final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining == 0){
+                return -1;
+            }
+            int rd = body.read(b, off, (int) Math.min(len, remaining));
+            if(rd == -1){
+                if(end == Long.MAX_VALUE){
+                    remaining = 0; // the length was not known
+                    return -1;
+                }
+                throw new EOFException("Response ended in the middle of a part");
+            }
+            remaining -= rd;
+            return rd;
+        }
+    };
+
+    public ByteRanges(MiniHttpClient.HttpResult res) throws IOException{
+        body = res.in;
+        String type = res.getHeader("Content-Type");
+        if(res.code == 206 && type != null && type.toLowerCase().startsWith("multipart/byteranges")){
+            int i = type.toLowerCase().indexOf("boundary=");
+            if(i == -1){
+                throw new IOException("No boundary in " + type);
+            }
+            String b = type.substring(i + "boundary=".length()).trim();
+            if(b.startsWith("\"") && b.endsWith("\"") && b.length() > 1){
+                b = b.substring(1, b.length() - 1);
+            }
+            boundary = "--" + b;
+        }else if(res.code == 206){
+            boundary = null;
+            parseContentRange(res.getHeader("Content-Range"));
+            single = true;
+        }else if(res.code == 200){
+            boundary = null;
+            String length = res.getHeader("Content-Length");
+            start = 0;
+            end = length == null ? Long.MAX_VALUE : Long.parseLong(length);
+            single = true;
+        }else{
+            throw new IOException("Unexpected response to a range request: " + res.headers.get(0));
+        }
+    }
+
+    private void parseContentRange(String contentRange) throws IOException{
+        // bytes 500-999/1234
+        if(contentRange == null || !contentRange.startsWith("bytes ")){
+            throw new IOException("Bad Content-Range: " + contentRange);
+        }
+        try{
+            String r = contentRange.substring("bytes ".length());
+            int dash = r.indexOf('-');
+            int slash = r.indexOf('/');
+            start = Long.parseLong(r.substring(0, dash).trim());
+            end = Long.parseLong(r.substring(dash + 1, slash == -1 ? r.length() : slash).trim()) + 1;
+        }catch(NumberFormatException | IndexOutOfBoundsException e){
+            throw new IOException("Bad Content-Range: " + contentRange, e);
+        }
+    }
+
+    /**
+     * Skips what is left of the current part and moves to the next one.
+     * @return false if there are no more parts
+     * @throws IOException
+     */
+    public boolean next() throws IOException{
+        while(remaining > 0){
+            if(in.skip(remaining) <= 0 && in.read() == -1){
+                break;
+            }
+        }
+        if(boundary == null){
+            if(!single){
+                return false;
+            }
+            single = false;
+            remaining = end - start;
+            return true;
+        }
+
+        String line;
+        do{
+            line = readLine();
+            if(line == null){
+                throw new EOFException("Multipart body ended without a closing boundary");
+            }
+        }while(!line.startsWith(boundary));
+        if(line.length() >= boundary.length() + 2 && line.startsWith("--", boundary.length())){
+            while(body.read() != -1){} // the epilogue
+            return false;
+        }
+        String contentRange = null;
+        while((line = readLine()) != null && !line.isEmpty()){
+            int colon = line.indexOf(':');
+            if(colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range")){
+                contentRange = line.substring(colon + 1).trim();
+            }
+        }
+        parseContentRange(contentRange);
+        remaining = end - start;
+        return true;
+    }
+
+    private String readLine() throws IOException{
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while((c = body.read()) != -1){
+            if(c == '\n'){
+                int l = sb.length();
+                if(l > 0 && sb.charAt(l - 1) == '\r'){
+                    sb.setLength(l - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        if(sb.length() == 0){
+            return null;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the offset in the file of the first byte of the current part
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the offset in the file after the last byte of the current part
+     */
+    public long getEnd() {
+        return end;
+    }
+}
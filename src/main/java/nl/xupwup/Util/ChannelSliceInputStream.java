@@ -0,0 +1,76 @@
+package nl.xupwup.Util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a slice of a file through positional reads on a shared channel. This
+ * does not open the file, so any number of these can be served by the same file
+ * descriptor, from any number of threads. Closing this stream does not close
+ * the channel.
+ * @author Rick
+ */
+public class ChannelSliceInputStream extends InputStream{
+    private final FileChannel channel;
+    private long position;
+    private long length;
+    private byte[] wrapped;
+    private ByteBuffer wrapper;
+
+    public ChannelSliceInputStream(FileChannel channel, long offset, long length){
+        this.channel = channel;
+        this.position = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int r = read(b, 0, 1);
+        return r == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(length <= 0){
+            return -1;
+        }
+        if(len == 0){
+            return 0;
+        }
+        if(b != wrapped){ // callers tend to pass the same buffer every time
+            wrapped = b;
+            wrapper = ByteBuffer.wrap(b);
+        }
+        wrapper.limit(off + (int) Math.min(length, len));
+        wrapper.position(off);
+        int read = channel.read(wrapper, position);
+        if(read == -1){
+            throw new EOFException("Unexpected end of file");
+        }
+        position += read;
+        length -= read;
+        return read;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        n = Math.max(0, Math.min(n, length));
+        position += n;
+        length -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, length);
+    }
+}
@@ -0,0 +1,173 @@
+package nl.xupwup.Util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Keep-alive connections shared by everything that downloads. There are at
+ * most maxPerHost connections to one server, whatever the number of threads.
+ * A thread that wants one while they are all in use waits until one is
+ * returned.
+ *
+ * Usage:
+ * <pre>
+ * try(ConnectionPool.Connection con = ConnectionPool.getShared().acquire("example.com")){
+ *     MiniHttpClient.HttpResult res = con.client.get("/test.html");
+ *     ...
+ * }
+ * </pre>
+ * @author Rick
+ */
+public class ConnectionPool {
+    private static final ConnectionPool shared = new ConnectionPool(8);
+
+    private int maxPerHost;
+    private final HashMap<String, Host> hosts = new HashMap<>();
+
+    private static class Host{
+        final ArrayDeque<MiniHttpClient> idle = new ArrayDeque<>();
+        int open = 0; // idle and in use
+    }
+
+    public ConnectionPool(int maxPerHost){
+        this.maxPerHost = maxPerHost;
+    }
+
+    public static ConnectionPool getShared(){
+        return shared;
+    }
+
+    public synchronized int getMaxPerHost(){
+        return maxPerHost;
+    }
+
+    /**
+     * Connections that are in use when the maximum is lowered are closed when
+     * they are returned.
+     * @param maxPerHost
+     */
+    public synchronized void setMaxPerHost(int maxPerHost){
+        this.maxPerHost = maxPerHost;
+        notifyAll();
+    }
+
+    /**
+     * Gets a connection to server, waiting if the maximum number of connections
+     * to it is in use. The client has its default settings (no error handler,
+     * no exceptions for non 200 responses).
+     * @param server  for example "google.com". Must not include "http://"
+     * @return
+     * @throws IOException
+     */
+    public Connection acquire(String server) throws IOException{
+        MiniHttpClient client;
+        synchronized(this){
+            Host host = hosts.get(server);
+            if(host == null){
+                host = new Host();
+                hosts.put(server, host);
+            }
+            while(host.idle.isEmpty() && host.open >= maxPerHost){
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException("Interrupted while waiting for a connection to " + server);
+                }
+            }
+            client = host.idle.poll();
+            if(client == null){
+                host.open++;
+            }
+        }
+        if(client == null){
+            try{
+                client = new MiniHttpClient(server);
+            }catch(IOException | RuntimeException e){
+                release(server, null, false);
+                throw e;
+            }
+        }
+        client.throwExceptionWhenNot200 = false;
+        client.setErrorHandler(null);
+        return new Connection(server, client);
+    }
+
+    private synchronized void release(String server, MiniHttpClient client, boolean reuse){
+        Host host = hosts.get(server);
+        if(reuse && host.open <= maxPerHost){
+            host.idle.push(client); // most recently used first, it is the least likely to have timed out
+        }else{
+            host.open--;
+            if(client != null){
+                try {
+                    client.close();
+                } catch (IOException ex) {
+                    // it is gone either way
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public synchronized void closeIdle(){
+        for(Host host : hosts.values()){
+            MiniHttpClient client;
+            while((client = host.idle.poll()) != null){
+                host.open--;
+                try {
+                    client.close();
+                } catch (IOException ex) {
+                    // it is gone either way
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection borrowed from the pool. Closing this returns it.
+     */
+    public class Connection implements AutoCloseable{
+        public final MiniHttpClient client;
+        private final String server;
+        private boolean released = false;
+
+        private Connection(String server, MiniHttpClient client) {
+            this.server = server;
+            this.client = client;
+        }
+
+        /**
+         * Closes the connection instead of returning it, for example after
+         * an error.
+         */
+        public void discard(){
+            if(!released){
+                release(server, client, false);
+                released = true;
+            }
+        }
+
+        /**
+         * Returns the connection to the pool. It is closed instead if it is
+         * not in a state to be reused, for example when a response was not read
+         * completely.
+         */
+        @Override
+        public void close(){
+            if(!released){
+                boolean reuse = false;
+                try{
+                    reuse = client.isReusable();
+                }finally{
+                    release(server, client, reuse);
+                    released = true;
+                }
+            }
+        }
+    }
+}
@@ -6,11 +6,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class MiniHttpClient implements AutoCloseable {
+    private static final byte[] NO_BYTES = new byte[0];
     private Socket sock;
     private OutputStream os;
     private InputStream in;
@@ -24,6 +25,10 @@ public class MiniHttpClient implements AutoCloseable {
     
     private ErrorHandler<Exception> errorHandler = null;
     
+    private final ArrayDeque<String> pipeline = new ArrayDeque<>(); // requests of which the response was not read yet
+    private int sent = 0; // the number of those that was written to the current socket
+    private int served = 0; // the number of responses read from the current socket
+    
     public MiniHttpClient(String server) throws IOException{
         this(server, false);
     }
@@ -45,19 +50,26 @@ public class MiniHttpClient implements AutoCloseable {
         close = true;
     }
     
-    private static void sendRequest(OutputStream os, String query, String... headers) throws IOException{
+    private static void sendRequest(OutputStream os, String query, String[] extraHeaders, String... headers) throws IOException{
         os.write((query + "\r\n").getBytes());
         for(String hdr : headers){
             os.write((hdr + "\r\n").getBytes());
         }
+        for(String hdr : extraHeaders){
+            os.write((hdr + "\r\n").getBytes());
+        }
         os.write("\r\n".getBytes("ASCII"));
     }
     
     
     private void readEverything(InputStream in) throws IOException{
-        byte[] bytes = new byte[1024];
-        while(in.read(bytes) != -1){
-            // do nothing
+        byte[] bytes = BufferPool.IO.take();
+        try{
+            while(in.read(bytes) != -1){
+                // do nothing
+            }
+        }finally{
+            BufferPool.IO.give(bytes);
         }
     }
     
@@ -84,6 +96,8 @@ public class MiniHttpClient implements AutoCloseable {
                     close();
                 }
                 sock = new Socket(server, port);
+                sent = 0;
+                served = 0;
                 in = new BufferedInputStream(sock.getInputStream());
                 os = new BufferedOutputStream(sock.getOutputStream());
                 error = false;
@@ -105,16 +119,79 @@ public class MiniHttpClient implements AutoCloseable {
         
     }
     
-    private HttpResult get2(String url, long offset, long endOffset) throws IOException{
-        boolean error = false;
+    /**
+     * Makes sure the last response is read completely, so we dont read old data
+     * instead of headers.
+     */
+    private void drainLastResult(){
         if(lastResult != null){
             try{
-                readEverything(lastResult.in); // make sure everything is read, 
-                                               // so we dont read old data instead of headers
+                readEverything(lastResult.in);
             }catch(IOException e){
                 close = true; // reopen the socket
             }
         }
+    }
+    
+    /**
+     * @return the value of a range header, or null if offset is -1
+     */
+    private static String range(long offset, long endOffset){
+        if(offset == -1){
+            return null;
+        }
+        String rangeStr = offset + "-";
+        if(endOffset != -1){
+            rangeStr += endOffset;
+        }
+        return rangeStr;
+    }
+    
+    private void sendGet(String url, String rangeStr, String[] extraHeaders) throws IOException{
+        if(rangeStr != null){
+            sendRequest(os, "GET " + url + " HTTP/1.1", extraHeaders,
+                "Host: " + server,
+                "Accept: text/html", 
+                "Content-Length: 0",
+                "Connection: " + (closeConnection ? "close" : "keep-alive"),
+                "User-Agent: rickHttpClient",
+                "Accept: */*",
+                "Range: bytes=" + rangeStr
+            );
+        }else{
+            sendRequest(os, "GET " + url + " HTTP/1.1", extraHeaders,
+                "Host: " + server,
+                "Accept: text/html", 
+                "Content-Length: 0",
+                "Connection: " + (closeConnection ? "close" : "keep-alive"),
+                "User-Agent: rickHttpClient",
+                "Accept: */*"
+            );
+        }
+    }
+    
+    /**
+     * Asks the error handler what to do with e, and waits as long as it says.
+     * @throws IOException  e, if the error handler says we should not retry
+     */
+    private void waitForRetry(IOException e) throws IOException{
+        int handle = -1;
+        if(errorHandler == null || (handle = errorHandler.handle(e)) == -1){
+            throw e;
+        }
+        try {
+            Thread.sleep(handle);
+        } catch (InterruptedException ex) {
+            throw new IOException(ex);
+        }
+    }
+    
+    private HttpResult get2(String url, String rangeStr, String... extraHeaders) throws IOException{
+        boolean error = false;
+        drainLastResult();
+        if(sent > 0){
+            close = true; // responses to pipelined requests are still on their way
+        }
         
         if(close || sock.isClosed()){
             reopenSocket();
@@ -125,51 +202,23 @@ public class MiniHttpClient implements AutoCloseable {
         ArrayList<String> headers = new ArrayList<>();
         do{
             try{
-                if(offset != -1){
-                    String rangeStr = offset + "-";
-                    if(endOffset != -1){
-                        rangeStr += endOffset;
-                    }
-                    sendRequest(os, "GET " + url + " HTTP/1.1", 
-                        "Host: " + server,
-                        "Accept: text/html", 
-                        "Content-Length: 0",
-                        "Connection: " + (closeConnection ? "close" : "keep-alive"),
-                        "User-Agent: rickHttpClient",
-                        "Accept: */*",
-                        "Range: bytes=" + rangeStr
-                    );
-                }else{
-                    sendRequest(os, "GET " + url + " HTTP/1.1", 
-                        "Host: " + server,
-                        "Accept: text/html", 
-                        "Content-Length: 0",
-                        "Connection: " + (closeConnection ? "close" : "keep-alive"),
-                        "User-Agent: rickHttpClient",
-                        "Accept: */*"
-                    );
-                }
+                sendGet(url, rangeStr, extraHeaders);
                 os.flush();
                 left = getHeaders(in, headers);
                 error = false;
             }catch(IOException e){
-                int handle = -1;
-                if(errorHandler == null || (handle = errorHandler.handle(e)) == -1){
-                    throw e;
-                }
+                if(served == 0){
+                    waitForRetry(e);
+                } // else the server probably closed the idle connection, just try again
                 error = true;
-                if(handle != -1){
-                    try {
-                        Thread.sleep(handle);
-                    } catch (InterruptedException ex) {
-                        throw new IOException(ex);
-                    }
-                }
+                headers.clear();
                 reopenSocket();
             }
         }while(error);
-
-        
+        return readResponse(url, rangeStr != null, left, headers);
+    }
+    
+    private HttpResult readResponse(String url, boolean partial, byte[] left, ArrayList<String> headers) throws IOException{
         boolean chunked = false;
         
 
@@ -191,6 +240,11 @@ public class MiniHttpClient implements AutoCloseable {
         }
         
         int status = Integer.parseInt(headers.get(0).split(" ")[1]);
+        served++;
+        if(status == 304 || status == 204 || status / 100 == 1){
+            length = 0; // these never have a body
+            chunked = false;
+        }
         
         InputStream httpStream;
         if(chunked){
@@ -200,12 +254,123 @@ public class MiniHttpClient implements AutoCloseable {
             httpStream = new HTTPInputStream(left, in, length);
         }
         HttpResult res = new HttpResult(httpStream, headers, status, url);
-        if(!(offset == -1 && status == 200 || offset != -1 && status == 206 ) && throwExceptionWhenNot200){
+        if(!(!partial && status == 200 || partial && status == 206 ) && throwExceptionWhenNot200){
+            close = true; // nobody is going to read the body, so this connection can not be reused
             throw new IOException(headers.get(0) + ", for url: " + url);
         }
         return res;
     }
     
+    /**
+     * Queues a get request without waiting for the responses to earlier ones
+     * (HTTP pipelining). The responses are returned in the same order by next().
+     * A connection that breaks or gets closed by the server halfway is reopened
+     * by next(), and the requests that were not answered yet are sent again.
+     * 
+     * Do not mix this with get() while there are responses left to read.
+     * @param url  Relative urls only! For example "/test.html"
+     * @throws IOException 
+     */
+    public void enqueue(String url) throws IOException{
+        pipeline.add(url);
+        if(closeConnection || close || sock == null || sock.isClosed()){
+            return; // next() sends it on a fresh connection
+        }
+        try{
+            sendGet(url, null, new String[0]);
+            os.flush();
+            sent++;
+        }catch(IOException e){
+            close = true; // next() reopens the socket and sends it again
+        }
+    }
+    
+    /**
+     * Reads the response to the oldest request passed to enqueue, and flushes 
+     * the last returned response object.
+     * @return HTTPResult object
+     * @throws IOException 
+     */
+    public HttpResult next() throws IOException{
+        String url = pipeline.peek();
+        if(url == null){
+            throw new IllegalStateException("No requests queued");
+        }
+        drainLastResult();
+        
+        byte[] left = null;
+        ArrayList<String> headers = new ArrayList<>();
+        boolean error;
+        do{
+            try{
+                if(close || sock == null || sock.isClosed()){
+                    reopenSocket();
+                    close = closeConnection;
+                }
+                if(sent == 0){
+                    for(String u : pipeline){
+                        sendGet(u, null, new String[0]);
+                        sent++;
+                        if(closeConnection){
+                            break; // the server would not answer the others anyway
+                        }
+                    }
+                    os.flush();
+                }
+                left = getHeaders(in, headers);
+                error = false;
+            }catch(IOException e){
+                if(served == 0){
+                    waitForRetry(e);
+                } // else the server probably closed the idle connection, just try again
+                error = true;
+                headers.clear();
+                close = true;
+            }
+        }while(error);
+        pipeline.poll();
+        sent--;
+        
+        HttpResult res = readResponse(url, false, left, headers);
+        lastResult = new HttpResult(new InputStreamWrapper(res, 0, -1), res.headers, res.code, res.url);
+        return lastResult;
+    }
+    
+    /**
+     * @return true if the connection can be used for another request without
+     * first reading the rest of a response, or reconnecting.
+     */
+    public boolean isReusable(){
+        if(!pipeline.isEmpty()){
+            return false;
+        }
+        if(sock == null){
+            return true;
+        }
+        if(close || sock.isClosed()){
+            return false;
+        }
+        if(lastResult == null){
+            return true;
+        }
+        InputStream body = lastResult.in;
+        if(body instanceof InputStreamWrapper){ // not for multi-range responses
+            body = ((InputStreamWrapper) body).in;
+        }
+        if(body instanceof ChunkedInputStream){
+            return ((ChunkedInputStream) body).chunkRemaining == -1;
+        }
+        HTTPInputStream h = (HTTPInputStream) body;
+        return h.length != -1 && h.alreadyRead >= h.length;
+    }
+    
+    /**
+     * @return the number of enqueued requests of which the response was not read yet
+     */
+    public int pending(){
+        return pipeline.size();
+    }
+    
     /**
      * Issues a get request and flushes the last returned response object.
      * @param url  Relative urls only! For example "/test.html"
@@ -213,75 +378,86 @@ public class MiniHttpClient implements AutoCloseable {
      * @throws IOException 
      */
     public HttpResult get(String url) throws IOException{
-        HttpResult res = get2(url, -1, -1);
+        return get(url, new String[0]);
+    }
+    
+    /**
+     * Issues a get request with some extra headers, for example "If-None-Match: ...".
+     * Note that the extra headers are not sent again when the download is 
+     * resumed after an error.
+     * @param url  Relative urls only! For example "/test.html"
+     * @param extraHeaders
+     * @return HTTPResult object
+     * @throws IOException 
+     */
+    public HttpResult get(String url, String... extraHeaders) throws IOException{
+        HttpResult res = get2(url, null, extraHeaders);
         lastResult = new HttpResult(new InputStreamWrapper(res, 0, -1), res.headers, res.code, res.url);
         return lastResult;
     }
     
     public HttpResult get(String url, long start, long end) throws IOException{
-        HttpResult res = get2(url, start, end);
+        HttpResult res = get2(url, range(start, end));
         lastResult = new HttpResult(new InputStreamWrapper(res, start, end), res.headers, res.code, res.url);
         return lastResult;
     }
     
     /**
-     * 
-     * @param in
-     * @param headers
-     * @return bytes it read that belong to the response body.
+     * Requests several ranges of a file at once. The server may answer with
+     * a multipart/byteranges body, with a single range covering all of them,
+     * or with the whole file; use ByteRanges to read the response.
+     * Unlike the other get methods, the download is not resumed after a read 
+     * error.
+     * @param url  Relative urls only! For example "/test.html"
+     * @param ranges  pairs of first and last (inclusive) byte offsets
+     * @return HTTPResult object
      * @throws IOException 
      */
-    private static byte[] getHeaders(InputStream in, ArrayList<String> headers) throws IOException{
-        int left = 0;
-        byte[] buffer = new byte[2048];
-        byte[] obuffer = new byte[2048];
-        int read;
-        while((read = in.read(buffer, left, buffer.length - left)) != -1){
-            int idx = getNewlineInByteArray(buffer, 0, read + left);
-            
-            if(idx == -1 && read + left == buffer.length){
-                throw new IOException("Header line > " + buffer.length);
-            }
-            
-            int start = 0;
-            while(idx != -1){
-                if(idx == start){
-                    start = idx + 2;
-                    break;
-                }else{
-                    headers.add(new String(buffer, start, idx - start));
-                }
-                start = idx + 2;
-                idx = getNewlineInByteArray(buffer, start, read + left);
-            }
-            left = read + left - start;
-            System.arraycopy(buffer, start, obuffer, 0, left);
-            byte[] h = buffer;
-            buffer = obuffer;
-            obuffer = h;
-            if(idx + 2 == start){
-                break;
+    public HttpResult get(String url, long[] ranges) throws IOException{
+        StringBuilder rangeStr = new StringBuilder();
+        for(int i = 0; i < ranges.length; i += 2){
+            if(i > 0){
+                rangeStr.append(',');
             }
+            rangeStr.append(ranges[i]).append('-').append(ranges[i + 1]);
         }
-        return Arrays.copyOfRange(buffer, 0, left);
+        lastResult = get2(url, rangeStr.toString());
+        return lastResult;
     }
     
     /**
-     * Gets the first occurrence of a newline in a bytearray.
-     * @param in  the bytearray to search in
-     * @param o  offset
-     * @param max  the length of the array. (if this is less than in.length only the first 'max' elements will be considered)
-     * @return 
+     * Reads header lines up to and including the empty line. This reads byte 
+     * by byte (in is buffered), so nothing after the headers is consumed. That 
+     * matters when responses are pipelined: the next response may already be 
+     * in the buffer.
+     * @param in
+     * @param headers
+     * @return bytes it read that belong to the response body. (always empty)
+     * @throws IOException 
      */
-    private static int getNewlineInByteArray(byte[] in, int o, int max){
-        byte r = "\r".getBytes()[0];
-        byte n = "\n".getBytes()[0];
-        for(int i = o; i < Math.min(max, in.length) -1; i++){
-            if(in[i] == r && in[i+1] == n){
-                return i;
+    private static byte[] getHeaders(InputStream in, ArrayList<String> headers) throws IOException{
+        byte[] line = BufferPool.SMALL.take();
+        try{
+            int len = 0;
+            int c;
+            while((c = in.read()) != -1){
+                if(c == '\n' && len > 0 && line[len - 1] == '\r'){
+                    if(len == 1){
+                        return NO_BYTES;
+                    }
+                    headers.add(new String(line, 0, len - 1));
+                    len = 0;
+                    continue;
+                }
+                if(len == line.length){
+                    throw new IOException("Header line > " + line.length);
+                }
+                line[len++] = (byte) c;
             }
+            throw new IOException("Connection closed.");
+        }finally{
+            BufferPool.SMALL.give(line);
         }
-        return -1;
     }
     
     public static class HttpResult{
@@ -294,6 +470,22 @@ public class MiniHttpClient implements AutoCloseable {
             this.headers = headers;
             this.in = in;
             this.code = code;
+            this.url = url;
+        }
+        
+        /**
+         * @param name  the header name, case insensitive
+         * @return the value of the first header with this name, or null
+         */
+        public String getHeader(String name){
+            for(int i = 1; i < headers.size(); i++){ // the first line is the status line
+                String header = headers.get(i);
+                int colon = header.indexOf(':');
+                if(colon == name.length() && header.regionMatches(true, 0, name, 0, colon)){
+                    return header.substring(colon + 1).trim();
+                }
+            }
+            return null;
         }
     }
     
@@ -486,7 +678,9 @@ public class MiniHttpClient implements AutoCloseable {
             while(true){
                 try{
                     int rd = in.read(b, off, len);
-                    offset+= rd;
+                    if(rd > 0){
+                        offset += rd;
+                    }
                     return rd;
                 }catch(IOException e){
                     int handle;
@@ -498,7 +692,7 @@ public class MiniHttpClient implements AutoCloseable {
                     } catch (InterruptedException ex) {
                         throw new IOException("Interrupted exception while reading", e);
                     }
-                    HttpResult r2 = get2(res.url, offset, -1);
+                    HttpResult r2 = get2(res.url, range(offset, endoff));
                     in = r2.in;
                 }
             }
@@ -0,0 +1,83 @@
+package nl.xupwup.Util;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts bytes and measures how many go by per second. Counting is striped
+ * (LongAdder), so many threads can count on every read without contending on a
+ * lock. A single daemon thread samples all meters once a second; readers only
+ * see the result of the last sample.
+ * @author Rick
+ */
+public class Throughput {
+    private static final long INTERVAL = 1000;
+    private static final CopyOnWriteArrayList<Throughput> meters = new CopyOnWriteArrayList<>();
+
+    static{
+        Thread sampler = new Thread("Throughput sampler"){
+            @Override
+            public void run() {
+                long last = System.nanoTime();
+                while(true){
+                    try {
+                        Thread.sleep(INTERVAL);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    for(Throughput t : meters){
+                        t.sample(now - last);
+                    }
+                    last = now;
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    private final String name;
+    private final LongAdder count = new LongAdder();
+    private long sampled = 0; // only touched by the sampler
+    private volatile int speed = 0;
+
+    /**
+     * Creates a meter. It is sampled for as long as the program runs, so
+     * these are meant to be kept in static fields.
+     * @param name  used by toString
+     */
+    public Throughput(String name) {
+        this.name = name;
+        meters.add(this);
+    }
+
+    private void sample(long nanos){
+        long total = count.sum();
+        speed = (int) ((total - sampled) * 1000000000L / Math.max(nanos, 1) / 1024);
+        sampled = total;
+    }
+
+    public void add(long bytes){
+        count.add(bytes);
+    }
+
+    /**
+     * @return bytes counted since the program started
+     */
+    public long getTotal(){
+        return count.sum();
+    }
+
+    /**
+     * @return the speed in KiB/s during the last second
+     */
+    public int getSpeed(){
+        return speed;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + speed + " KiB/s, " + (getTotal() >> 20) + " MiB total";
+    }
+}
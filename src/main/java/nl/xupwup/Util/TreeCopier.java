@@ -0,0 +1,194 @@
+package nl.xupwup.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies directory trees on a few threads at once.
+ *
+ * Files whose size and modification time already match are skipped. Others
+ * are hard linked when that works, which makes a copy on the same file system
+ * a metadata operation. When it does not (another file system, or one without
+ * hard links) they are copied with Files.copy, which lets the operating system
+ * copy without going through our memory, or even share the blocks on file
+ * systems that support that.
+ *
+ * Because of the hard links, whoever changes a file in the source tree later
+ * on must replace it rather than write into it.
+ * @author Rick
+ */
+public class TreeCopier {
+    private final int threads;
+    private volatile boolean link = true;
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private volatile int fileCount = 1;
+
+    /**
+     * @param threads  how many files are copied at once
+     */
+    public TreeCopier(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Only copy, never link.
+     */
+    public void disableLinks(){
+        link = false;
+    }
+
+    /**
+     * Copies a file, or merges the contents of a directory into another.
+     * @param from
+     * @param to  the copy of from. Files that are in to but not in from are left alone.
+     * @throws IOException
+     */
+    public void copy(File from, File to) throws IOException{
+        final Path src = from.toPath();
+        final Path dst = to.toPath();
+        final ArrayList<Path> files = new ArrayList<>();
+        Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target(src, dst, dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        copyAll(src, dst, files);
+    }
+
+    /**
+     * Copies some files from one directory to another. Missing directories
+     * are created.
+     * @param from
+     * @param to
+     * @param paths  the files to copy, relative to from and to
+     * @throws IOException
+     */
+    public void copy(File from, File to, Collection<String> paths) throws IOException{
+        Path src = from.toPath();
+        ArrayList<Path> files = new ArrayList<>(paths.size());
+        for(String path : paths){
+            files.add(src.resolve(path));
+        }
+        copyAll(src, to.toPath(), files);
+    }
+
+    private void copyAll(final Path src, final Path dst, ArrayList<Path> files) throws IOException{
+        fileCount = Math.max(1, files.size());
+        filesDone.set(0);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        ArrayList<Future<?>> copies = new ArrayList<>(files.size());
+        try{
+            for(final Path file : files){
+                copies.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        if(!isCancelled()){
+                            Path target = target(src, dst, file);
+                            Files.createDirectories(target.getParent());
+                            copyFile(file, target);
+                        }
+                        filesDone.incrementAndGet();
+                        return null;
+                    }
+                }));
+            }
+            for(Future<?> copy : copies){
+                try {
+                    copy.get();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted while copying " + src, ex);
+                } catch (ExecutionException ex) {
+                    if(ex.getCause() instanceof IOException){
+                        throw (IOException) ex.getCause();
+                    }
+                    throw new IOException(ex.getCause());
+                }
+            }
+        }finally{
+            for(Future<?> copy : copies){
+                copy.cancel(false);
+            }
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Path target(Path src, Path dst, Path file){
+        return dst.resolve(src.relativize(file).toString());
+    }
+
+    private void copyFile(Path src, Path dst) throws IOException{
+        BasicFileAttributes a = Files.readAttributes(src, BasicFileAttributes.class);
+        if(Files.exists(dst)){
+            BasicFileAttributes b = Files.readAttributes(dst, BasicFileAttributes.class);
+            if(a.size() == b.size() && a.lastModifiedTime().equals(b.lastModifiedTime())){
+                copied(dst, 0); // already there, or a link to it
+                return;
+            }
+        }
+        if(link){
+            try{
+                Files.deleteIfExists(dst);
+                Files.createLink(dst, src);
+                copied(dst, 0);
+                return;
+            }catch(IOException | UnsupportedOperationException e){
+                link = false; // not going to work for the other files either
+            }
+        }
+        Files.copy(src, dst, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        copied(dst, a.size());
+    }
+
+    /**
+     * Called after each file, from the copying threads.
+     * @param target  the copy
+     * @param bytes  how many bytes were copied, 0 if it was skipped or linked
+     */
+    protected void copied(Path target, long bytes){
+    }
+
+    /**
+     * Polled before each file. Files that were not copied yet are skipped
+     * once this returns true.
+     * @return
+     */
+    protected boolean isCancelled(){
+        return false;
+    }
+
+    /**
+     * @return the part of the files that is done, 0 to 1
+     */
+    public float getProgress(){
+        return (float) filesDone.get() / fileCount;
+    }
+}
@@ -0,0 +1,187 @@
+package org.summoners.patcher.patch;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A task that runs other tasks as soon as the tasks they depend on are
+ * finished, several at once. Independent projects download at the same time,
+ * sharing the connections of the shared connection pool, so the total time is
+ * close to that of the longest chain of tasks rather than the sum of all of them.
+ * @author Brittan Thomas
+ */
+public class TaskGraph extends PatchTask {
+
+	/**
+	 * A task in the graph.
+	 */
+	private static class Node {
+
+		/**
+		 * The task of this node.
+		 */
+		private final PatchTask task;
+
+		/**
+		 * The nodes that have to succeed before this one starts.
+		 */
+		private final Node[] after;
+
+		/**
+		 * If the task was submitted, and if it returned.
+		 */
+		private volatile boolean started, returned;
+
+		/**
+		 * Instantiates a new node.
+		 *
+		 * @param task
+		 *            the task of this node
+		 * @param after
+		 *            the nodes that have to succeed before this one starts
+		 */
+		private Node(PatchTask task, Node[] after) {
+			this.task = task;
+			this.after = after;
+		}
+
+		/**
+		 * Checks if the task returned, finished and without an error.
+		 *
+		 * @return if the task succeeded
+		 */
+		private boolean succeeded() {
+			return returned && task.finished && task.error == null;
+		}
+
+		/**
+		 * Checks if all the tasks this node depends on succeeded.
+		 *
+		 * @return if this node can start
+		 */
+		private boolean isReady() {
+			return Arrays.stream(after).allMatch(Node::succeeded);
+		}
+	}
+
+	/**
+	 * Instantiates a new task graph.
+	 *
+	 * @param threads
+	 *            the amount of tasks that may run at once
+	 */
+	public TaskGraph(int threads) {
+		this.threads = threads;
+		setName("Summoners-Task-Graph");
+	}
+
+	/**
+	 * The amount of tasks that may run at once.
+	 */
+	private final int threads;
+
+	/**
+	 * The nodes of this graph, in the order they were added.
+	 */
+	private final ArrayList<Node> nodes = new ArrayList<>();
+
+	/**
+	 * The node of each task.
+	 */
+	private final HashMap<PatchTask, Node> nodesByTask = new HashMap<>();
+
+	/**
+	 * Adds a task to this graph. The tasks it depends on have to be added
+	 * first, so the graph can not contain cycles.
+	 *
+	 * @param task
+	 *            the task to add
+	 * @param after
+	 *            the tasks that have to succeed before this task starts
+	 * @return the task
+	 */
+	public PatchTask add(PatchTask task, PatchTask... after) {
+		Node[] dependencies = new Node[after.length];
+		for (int i = 0; i < after.length; i++) {
+			dependencies[i] = nodesByTask.get(after[i]);
+			if (dependencies[i] == null)
+				throw new IllegalArgumentException("Add " + after[i].getName() + " before the tasks that depend on it");
+		}
+		Node node = new Node(task, dependencies);
+		nodes.add(node);
+		nodesByTask.put(task, node);
+		return task;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.summoners.patcher.patch.PatchTask#patch()
+	 */
+	@Override
+	public void patch() throws MalformedURLException, IOException, NoSuchAlgorithmException {
+		percentage = 0F;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ExecutorCompletionService<Node> completed = new ExecutorCompletionService<>(pool);
+		int running = 0;
+		try {
+			while (true) {
+				if (!finished) {
+					for (Node node : nodes) {
+						if (!node.started && node.isReady()) {
+							node.started = true;
+							running++;
+							completed.submit(() -> {
+								node.task.run(); // catches everything itself
+								return node;
+							});
+						}
+					}
+				}
+
+				if (running == 0)
+					break;
+
+				Future<Node> future = completed.poll(100, TimeUnit.MILLISECONDS);
+				if (finished) // cancelled, pass it on
+					nodes.stream().filter(n -> n.started && !n.returned).forEach(n -> n.task.finished = true);
+
+				status = nodes.stream().filter(n -> n.started && !n.returned && n.task.status != null)
+								.map(n -> n.task.status).findFirst().orElse(null);
+				percentage = getProgress();
+				if (future == null)
+					continue;
+
+				running--;
+				Node node = future.get();
+				node.returned = true;
+				if (node.task.error != null)
+					error = node.task.error;
+			}
+		} catch (InterruptedException ex) {
+			throw new IOException("Interrupted while waiting for tasks", ex);
+		} catch (ExecutionException ex) {
+			throw new IOException(ex.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		percentage = getProgress();
+		if (!finished)
+			finished = nodes.stream().allMatch(Node::succeeded);
+	}
+
+	/**
+	 * Gets the average completion of the tasks in this graph.
+	 *
+	 * @return the percentage completion of all tasks
+	 */
+	private float getProgress() {
+		if (nodes.isEmpty())
+			return 100F;
+
+		return (float) nodes.stream().mapToDouble(n -> n.succeeded() ? 100F : Math.max(0F, Math.min(100F, n.task.getPercentage())))
+								.sum() / nodes.size();
+	}
+}
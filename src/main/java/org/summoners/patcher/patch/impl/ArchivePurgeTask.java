@@ -4,7 +4,10 @@ import java.io.*;
 import java.net.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
+import nl.xupwup.Util.*;
 import org.summoners.cache.*;
 import org.summoners.cache.structure.*;
 import org.summoners.patcher.patch.*;
@@ -94,6 +97,11 @@ public class ArchivePurgeTask extends PatchTask {
 		return type;
 	}
 	
+	/**
+	 * The amount of archives that are purged at once.
+	 */
+	private static final int PURGE_THREADS = 4;
+	
 	/**
 	 * The amount of archives being purged.
 	 */
@@ -102,7 +110,7 @@ public class ArchivePurgeTask extends PatchTask {
 	/**
 	 * The percentage completeion of all purge tasks.
 	 */
-	private float globalPercentage;
+	private volatile float globalPercentage;
 
 	/**
 	 * Gets the percentage completeion of all purge tasks.
@@ -123,30 +131,6 @@ public class ArchivePurgeTask extends PatchTask {
 		this.globalPercentage = globalPercentage;
 	}
 	
-	/**
-	 * The percentage completion of the most recent archive.
-	 */
-	private float archivePercentage;
-
-	/**
-	 * Gets the percentage completion of the most recent archive.
-	 *
-	 * @return the percentage completion of the most recent archive
-	 */
-	public float getArchivePercentage() {
-		return archivePercentage;
-	}
-
-	/**
-	 * Sets the percentage completion of the most recent archive.
-	 *
-	 * @param archivePercentage
-	 *            the new percentage completion of the most recent archive
-	 */
-	public void setArchivePercentage(float archivePercentage) {
-		this.archivePercentage = archivePercentage;
-	}
-
 	/* (non-Javadoc)
 	 * @see org.summoners.patcher.PatchTask#patch()
 	 */
@@ -174,16 +158,34 @@ public class ArchivePurgeTask extends PatchTask {
 		}
 		
 		archiveCount = pendingArchives.size();
-		for (int i = 0; i != archiveCount; ++i) {
-			setGlobalPercentage(((float) i / archiveCount));
-			purgeArchive(pendingArchives.pop());
-			if (finished)
-				return;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(PURGE_THREADS, archiveCount)));
+		AtomicInteger purged = new AtomicInteger();
+		List<Future<?>> purges = new ArrayList<>(archiveCount);
+		try {
+			for (VersionedArchive<RiotFileManifest> pending : pendingArchives)
+				purges.add(pool.submit(() -> {
+					if (!finished)
+						purgeArchive(pending);
+					setGlobalPercentage((float) purged.incrementAndGet() / archiveCount);
+					return null;
+				}));
+			for (Future<?> purge : purges)
+				purge.get();
+		} catch (InterruptedException ex) {
+			throw new IOException("Interrupted while purging archives", ex);
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException)
+				throw (IOException) ex.getCause();
+			throw new IOException(ex.getCause());
+		} finally {
+			purges.forEach(purge -> purge.cancel(false));
+			pool.shutdown();
 		}
+		if (finished)
+			return;
 		
 		finished = true;
 		setGlobalPercentage(1F);
-		setArchivePercentage(0F);
 	}
     
 	/**
@@ -215,14 +217,13 @@ public class ArchivePurgeTask extends PatchTask {
 			tmpDir.mkdir();
 			
 			status = "Loading " + archive.getVersion();
+			byte[] buffer = BufferPool.IO.take();
 			try (RiotArchiveFile target = new RiotArchiveFile(folder.getAbsolutePath() + "/temp/Archive_1.raf")) {
-				for (int index = 0; index < archive.getFiles().size(); index++) {
-					RiotFileManifest manifest = archive.getFiles().get(index);
-					setArchivePercentage((float) index / archive.getFiles().size());
+				for (RiotFileManifest manifest : archive.getFiles()) {
 					status = manifest.getName(); fileCount++;
 					try (InputStream in = source.get(manifest.getPath() + manifest.getName()).getInputStream()) {
 						try (OutputStream os = target.write(manifest.getPath() + manifest.getName(), manifest)) {
-							int read; byte[] buffer = new byte[1024];
+							int read;
 							while ((read = in.read(buffer)) != -1) {
 								Worker.record(read);
 								if (finished) {
@@ -237,6 +238,8 @@ public class ArchivePurgeTask extends PatchTask {
 						targetSize = target.get(manifest.getPath() + manifest.getName()).getSize();
 					Validate.require(targetSize == sourceSize, () -> "Size mismatch: " + sourceSize + " != " + targetSize, IOException.class);
 				}
+			} finally {
+				BufferPool.IO.give(buffer);
 			}
 		}
 		
@@ -258,6 +261,6 @@ public class ArchivePurgeTask extends PatchTask {
      */
     @Override
     public float getPercentage() {
-        return 100F * (globalPercentage + archivePercentage / archiveCount);
+        return 100F * globalPercentage;
     }
 }
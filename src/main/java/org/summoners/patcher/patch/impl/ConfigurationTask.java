@@ -2,6 +2,7 @@ package org.summoners.patcher.patch.impl;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.security.*;
 import java.util.*;
 import java.util.logging.*;
@@ -68,39 +69,49 @@ public class ConfigurationTask extends PatchTask {
 		
 		File configDefaults = RiotFileUtil.getRADSFile("solutions/lol_game_client_sln/releases/" + Versions.getGameSLNVersion() + "/deploy/DATA/cfg/defaults/");
 		configDefaults.mkdirs();
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(configDefaults, "locale.cfg")))) {
+		File localeConfig = new File(configDefaults, "locale.cfg");
+		Files.deleteIfExists(localeConfig.toPath()); // replaced, it may be a hard link to the file in the game project
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(localeConfig))) {
 			writer.write("[General]\r\n" + "LanguageLocaleRegion=" + Patcher.getLanguage().split("_")[0] + "_" + Patcher.getLanguage().split("_")[1].toUpperCase());
 		}
 	}
 	
 	/**
-	 * Populates a list of tasks to patch the entire client.
+	 * The amount of patcher tasks that run at once.
+	 */
+	private static final int PATCHER_THREADS = 4;
+	
+	/**
+	 * Populates a list of tasks to patch the entire client. The projects are
+	 * independent of each other and patch at the same time, the tasks that
+	 * deploy them wait for the projects they need.
 	 *
 	 * @return the list of patcher tasks
 	 */
 	public LinkedList<PatchTask> getPatcherTasks() {
-		LinkedList<PatchTask> patchers = new LinkedList<>();
-		patchers.add(new ArchivePatcher(Versions.getAirVersion(), "lol_air_client", Versions.getBranch(), Patcher.shouldIgnoreS_OK(), Patcher.isForced()));
-		patchers.add(new ArchivePatcher(Versions.getAirConfigVersion(), "lol_air_client_config" + (!Patcher.getServer().equals("PBE") ? "_" + Patcher.getServer().toLowerCase() : ""), 
-													Versions.getBranch(), Patcher.shouldIgnoreS_OK(), Patcher.isForced()));
-		patchers.add(new ArchivePatcher(Versions.getGameVersion(), "lol_game_client", Versions.getBranch(), Patcher.shouldIgnoreS_OK(), Patcher.isForced()));
-		patchers.add(new ArchivePatcher(Versions.getGameLanguageVersion(), "lol_game_client_" + Patcher.getLanguage(), Versions.getBranch(), Patcher.shouldIgnoreS_OK(), Patcher.isForced()));
-		patchers.add(new CopyTask(RiotFileUtil.getRADSFile("projects/" + "lol_air_client_config" + (!Patcher.getServer().equals("PBE") ? "_" + Patcher.getServer().toLowerCase() : "")
-																	+ "/releases/" + Versions.getAirConfigVersion() + "/deploy/"),
-								RiotFileUtil.getRADSFile("projects/lol_air_client/releases/" + Versions.getAirVersion() + "/deploy/"), true));
-		patchers.add(new SLNPatchTask(Versions.getGameVersion(), Versions.getGameSLNVersion(), Patcher.shouldIgnoreS_OK()));
-		patchers.add(new RunTask(() -> {
+		String airConfig = "lol_air_client_config" + (!Patcher.getServer().equals("PBE") ? "_" + Patcher.getServer().toLowerCase() : "");
+		TaskGraph graph = new TaskGraph(PATCHER_THREADS);
+		PatchTask air = graph.add(new ArchivePatcher(Versions.getAirVersion(), "lol_air_client", Versions.getBranch(), Patcher.shouldIgnoreS_OK(), Patcher.isForced()));
+		PatchTask airConfigPatcher = graph.add(new ArchivePatcher(Versions.getAirConfigVersion(), airConfig, Versions.getBranch(), Patcher.shouldIgnoreS_OK(), Patcher.isForced()));
+		PatchTask game = graph.add(new ArchivePatcher(Versions.getGameVersion(), "lol_game_client", Versions.getBranch(), Patcher.shouldIgnoreS_OK(), Patcher.isForced()));
+		graph.add(new ArchivePatcher(Versions.getGameLanguageVersion(), "lol_game_client_" + Patcher.getLanguage(), Versions.getBranch(), Patcher.shouldIgnoreS_OK(), Patcher.isForced()));
+		PatchTask configCopy = graph.add(new CopyTask(RiotFileUtil.getRADSFile("projects/" + airConfig + "/releases/" + Versions.getAirConfigVersion() + "/deploy/"),
+								RiotFileUtil.getRADSFile("projects/lol_air_client/releases/" + Versions.getAirVersion() + "/deploy/"), true), air, airConfigPatcher);
+		graph.add(new SLNPatchTask(Versions.getGameVersion(), Versions.getGameSLNVersion(), Patcher.shouldIgnoreS_OK()), game);
+		graph.add(new RunTask(() -> {
 			try {
 				File file = RiotFileUtil.getRADSFile("projects/lol_air_client/releases/" + Versions.getAirVersion() + "/deploy/locale.properties");
-				file.createNewFile();
+				Files.deleteIfExists(file.toPath()); // replaced, it may be a hard link to the file in the config project
 				try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
 					writer.write("locale=" + Patcher.getLanguage().split("_")[0] + "_" + Patcher.getLanguage().split("_")[1].toUpperCase());
 				}
 			} catch (IOException ex) {
 				Logger.getLogger(ConfigurationTask.class.getName()).log(Level.SEVERE, null, ex);
 			}
-		}, "Locale config"));
+		}, "Locale config"), configCopy);
 		
+		LinkedList<PatchTask> patchers = new LinkedList<>();
+		patchers.add(graph);
 		finished = true;
 		return patchers;
 	}
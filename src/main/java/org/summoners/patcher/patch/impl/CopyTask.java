@@ -2,8 +2,10 @@ package org.summoners.patcher.patch.impl;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.security.*;
 
+import nl.xupwup.Util.*;
 import org.summoners.patcher.patch.*;
 import org.summoners.patcher.worker.*;
 
@@ -86,42 +88,9 @@ public class CopyTask extends PatchTask {
 	}
 	
 	/**
-	 * Copies the source file into the destination folder.
-	 *
-	 * @param source
-	 *            the source file or folder to be copied
-	 * @param destination
-	 *            the destination to be copied to
-	 * @throws FileNotFoundException
-	 *             the file not found exception
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
+	 * The amount of files that are copied at once.
 	 */
-	private void copy(File source, File destination) throws FileNotFoundException, IOException {
-		File file = new File(destination, source.getName());
-		if (source.isDirectory()) {
-			file.mkdir();
-			for (String name : source.list()) {
-				status = name;
-				copy(new File(source, name), new File(destination, source.getName()));
-			}
-			return;
-		}
-		
-		file.createNewFile();
-		try (InputStream inputStream = new BufferedInputStream(new FileInputStream(source))) {
-			int read; byte[] buffer = new byte[4096];
-			try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file))) {
-				while ((read = inputStream.read(buffer)) != -1) {
-					outputStream.write(buffer, 0, read);
-					if (finished)
-						return;
-					
-					Worker.record(read);
-				}
-			}
-		}
-	}
+	private static final int COPY_THREADS = 4;
 	
 	/* (non-Javadoc)
 	 * @see org.summoners.patcher.PatchTask#patch()
@@ -132,14 +101,20 @@ public class CopyTask extends PatchTask {
 		merge &= source.isDirectory();
 		
 		percentage = 0F;
-		if (!merge) {
-			copy(source, destination);
-		} else {
-			for (String fileName : source.list()) {
-				status = fileName;
-				copy(new File(source, fileName), destination);
+		TreeCopier copier = new TreeCopier(COPY_THREADS) {
+			@Override
+			protected void copied(Path target, long bytes) {
+				status = target.getFileName().toString();
+				Worker.record((int) bytes);
+				percentage = 100F * getProgress();
+			}
+			
+			@Override
+			protected boolean isCancelled() {
+				return finished;
 			}
-		}
+		};
+		copier.copy(source, merge ? destination : new File(destination, source.getName()));
 		
 		percentage = 100F;
 		finished = true;
@@ -5,6 +5,7 @@ import java.security.*;
 import java.util.*;
 import java.util.logging.*;
 
+import nl.xupwup.Util.*;
 import org.summoners.cache.*;
 import org.summoners.patcher.patch.impl.*;
 
@@ -131,19 +132,9 @@ public abstract class Worker extends Thread {
 	}
 	
 	/**
-	 * The last timestamp of the speed sample.
+	 * The bytes read by all workers, sampled once a second.
 	 */
-	protected static long last = 0L;
-	
-	/**
-	 * The amount of bytes read in this sampling.
-	 */
-	protected static int sample = 0;
-	
-	/**
-	 * This session's download speed (in kb/s).
-	 */
-	protected static int speed = 0;
+	protected static final Throughput throughput = new Throughput("download");
 	
 	/**
 	 * Gets the this session's download speed (in kb/s).
@@ -151,7 +142,7 @@ public abstract class Worker extends Thread {
 	 * @return the this session's download speed (in kb/s)
 	 */
 	public static int getSpeed() {
-		return speed;
+		return throughput.getSpeed();
 	}
 	
 	/**
@@ -160,13 +151,7 @@ public abstract class Worker extends Thread {
 	 * @param read
 	 *            the amount of bytes read in the current sample
 	 */
-	public static synchronized void record(int read) {
-		long now = System.currentTimeMillis();
-		sample += read;
-		if (now - last > 1000) {
-			speed = (int) ((sample / ((now - last) / 1000F)) / 1024);
-			sample = 0;
-			last = now;
-		}
+	public static void record(int read) {
+		throughput.add(read);
 	}
 }
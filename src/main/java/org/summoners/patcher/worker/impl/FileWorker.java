@@ -2,6 +2,7 @@ package org.summoners.patcher.worker.impl;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
 import java.security.*;
 import java.util.logging.*;
 import java.util.zip.*;
@@ -77,6 +78,8 @@ public class FileWorker extends Worker {
 			Validate.require(response.getStatusLine().getStatusCode() == 200, "Http responded with invalid code." + response.getStatusLine().getStatusCode(), IOException.class);
 			try (InputStream stream = response.getEntity().getContent()) {
 				try (InputStream input = manifest.getFileType().ordinal() > 0 ? new InflaterInputStream(stream) : stream) {
+					// replaced rather than truncated, the solution may hold a hard link to it
+					Files.deleteIfExists(target.toPath());
 					try (OutputStream output = new BufferedOutputStream(new FileOutputStream(target))) {
 						int read; byte[] buffer = new byte[4096];
 						while ((read = input.read(buffer)) != -1) {